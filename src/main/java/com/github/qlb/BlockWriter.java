@@ -0,0 +1,323 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Writes the content of one worker into the target file on the threads of {@link DiskWriter}. Writes of a worker
+ * run one after another in the order they were queued, on its own channel, so workers never contend for a lock or
+ * a file position. Consecutive chunks are held as one composite buffer and written with a single gathering write
+ * once they fill {@link #FLUSH_SIZE}, cut at a page boundary so the next write starts on one.
+ * <p>
+ * In the mmap output mode content inside the sized file is instead copied into a mapped window of
+ * {@link #WINDOW_SIZE} around it, which takes the write calls out of the path. Every writer keeps one window and
+ * unmaps it once content falls outside, so files of any size only ever have a few windows mapped.
+ */
+final class BlockWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(BlockWriter.class);
+    private static final int PAGE_SIZE = 4096;
+    private static final int FLUSH_SIZE = 512 * 1024;
+    private static final int MAX_COMPONENTS = 1024;
+    private static final long MAX_HOLD_NANOS = 1_000_000_000L;
+    private static final long WINDOW_SIZE = 32 * 1024 * 1024;
+    private final Path file;
+    private final Listener listener;
+    private final Deque<Write> writes = new ArrayDeque<>();
+    private boolean draining;
+    /**
+     * Guards the state below, held while writing to the file.
+     */
+    private final Object fileLock = new Object();
+    private final CompositeByteBuf pending = Unpooled.compositeBuffer(MAX_COMPONENTS);
+    private FileChannel channel;
+    private long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+    private long pendingSinceNanos;
+    private boolean failed;
+    private long writtenBytes;
+
+    interface Listener {
+        /**
+         * Queued bytes are on disk, they are reported in the order they were queued.
+         */
+        void written(long bytes);
+
+        void writeFailed(IOException e);
+    }
+
+    private static final class Write {
+        private final ByteBuf content;
+        private final long offset;
+        private final boolean close;
+
+        /**
+         * @param content the bytes to write, or null to only write out everything before
+         * @param close   whether to release the channel after the write
+         */
+        private Write(ByteBuf content, long offset, boolean close) {
+            this.content = content;
+            this.offset = offset;
+            this.close = close;
+        }
+    }
+
+    BlockWriter(Path file, Listener listener) {
+        this.file = file;
+        this.listener = listener;
+    }
+
+    /**
+     * Queue bytes for the file offset, the buffer is retained until it is written.
+     *
+     * @param source the channel the bytes came from, it stops reading while the memory budget is used up
+     */
+    void write(ByteBuf content, long offset, Channel source) {
+        final int bytes = content.readableBytes();
+        submit(new Write(content.retain(), offset, false));
+        MemoryBudget.INSTANCE.reserve(bytes, source);
+    }
+
+    /**
+     * Write out what is queued and release the channel, a later write opens it again.
+     */
+    void close() {
+        submit(new Write(null, 0, true));
+    }
+
+    /**
+     * Write out what is held back to be coalesced with later content.
+     */
+    void flush() {
+        submit(new Write(null, 0, false));
+    }
+
+    /**
+     * Drop what is queued and not written yet, a write in progress is waited for.
+     */
+    void abandon() {
+        final List<Write> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(writes);
+            writes.clear();
+        }
+        long bytes = 0;
+        for (Write write : dropped) {
+            if (write.content != null) {
+                bytes += write.content.readableBytes();
+                write.content.release();
+            }
+        }
+        synchronized (fileLock) {
+            bytes += discard();
+            closeChannel();
+            failed = false;
+        }
+        DiskWriter.INSTANCE.holding(this, false);
+        MemoryBudget.INSTANCE.release(bytes);
+    }
+
+    private void submit(Write write) {
+        synchronized (this) {
+            writes.add(write);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        DiskWriter.INSTANCE.execute(this::drain);
+    }
+
+    private synchronized Write poll() {
+        final Write write = writes.poll();
+        if (write == null) {
+            draining = false;
+        }
+        return write;
+    }
+
+    private void drain() {
+        Write write;
+        while ((write = poll()) != null) {
+            run(write);
+        }
+        if (MemoryBudget.INSTANCE.isExhausted()) {
+            // connections wait for the disk, more content will not come soon
+            run(null);
+        }
+    }
+
+    /**
+     * @param write the write to run, or null to only write out what is held
+     */
+    private void run(Write write) {
+        final long written;
+        final long dropped;
+        final boolean holding;
+        IOException error = null;
+        synchronized (fileLock) {
+            long discarded = 0;
+            try {
+                if (write == null || write.content == null) {
+                    writeOutAll();
+                    if (write != null && write.close) {
+                        closeChannel();
+                        failed = false;
+                    }
+                } else if (failed) {
+                    discarded = write.content.readableBytes();
+                    write.content.release();
+                } else {
+                    append(write.content, write.offset);
+                }
+            } catch (IOException e) {
+                failed = true;
+                error = e;
+                discarded += discard();
+            }
+            written = writtenBytes;
+            writtenBytes = 0;
+            dropped = discarded;
+            holding = pending.isReadable();
+        }
+        DiskWriter.INSTANCE.holding(this, holding);
+        MemoryBudget.INSTANCE.release(written + dropped);
+        if (written > 0) {
+            listener.written(written);
+        }
+        if (error != null) {
+            LOG.error("write to {} failed", file, error);
+            listener.writeFailed(error);
+        }
+    }
+
+    private void append(ByteBuf content, long offset) throws IOException {
+        final int start = content.readerIndex();
+        try {
+            if (DiskWriter.INSTANCE.isMapped() && copyToWindow(content, offset)) {
+                content.release();
+                return;
+            }
+            if (pending.isReadable() && offset != position + pending.readableBytes()) {
+                writeOutAll();
+            }
+        } catch (IOException e) {
+            // dropped together with what is pending
+            pending.addComponent(true, content.readerIndex(start));
+            throw e;
+        }
+        if (!pending.isReadable()) {
+            position = offset;
+            pendingSinceNanos = System.nanoTime();
+        }
+        pending.addComponent(true, content);
+        if (pending.readableBytes() >= FLUSH_SIZE) {
+            final long end = position + pending.readableBytes();
+            final long aligned = end - end % PAGE_SIZE;
+            writeOut((int) (aligned > position ? aligned - position : pending.readableBytes()));
+        } else if (System.nanoTime() - pendingSinceNanos > MAX_HOLD_NANOS) {
+            // a slow connection would leave its bytes unwritten, and its progress unreported, for long
+            writeOutAll();
+        }
+    }
+
+    /**
+     * @return false if the content is not inside the file, it is then written through the channel
+     */
+    private boolean copyToWindow(ByteBuf content, long offset) throws IOException {
+        openChannel();
+        final int length = content.readableBytes();
+        if (offset + length > fileSize) {
+            return false;
+        }
+        writeOutAll();
+        long at = offset;
+        while (content.isReadable()) {
+            if (window == null || at < windowStart || at >= windowStart + window.capacity()) {
+                unmap();
+                windowStart = at - at % WINDOW_SIZE;
+                window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart,
+                        Math.min(WINDOW_SIZE, fileSize - windowStart));
+            }
+            final ByteBuffer target = window.duplicate();
+            target.position((int) (at - windowStart));
+            target.limit((int) Math.min(window.capacity(), target.position() + (long) content.readableBytes()));
+            at += target.remaining();
+            content.readBytes(target);
+        }
+        writtenBytes += length;
+        return true;
+    }
+
+    private void unmap() {
+        if (window != null) {
+            // without an explicit unmap the window stays mapped until it is collected
+            PlatformDependent.freeDirectBuffer(window);
+            window = null;
+        }
+    }
+
+    private void openChannel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            fileSize = channel.size();
+        }
+    }
+
+    private void writeOutAll() throws IOException {
+        if (pending.isReadable()) {
+            writeOut(pending.readableBytes());
+        }
+    }
+
+    private int discard() {
+        final int bytes = pending.readableBytes();
+        pending.skipBytes(bytes);
+        pending.discardReadComponents();
+        return bytes;
+    }
+
+    private void closeChannel() {
+        unmap();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("close {} failed", file, e);
+            }
+            channel = null;
+        }
+    }
+
+    private void writeOut(int length) throws IOException {
+        openChannel();
+        final ByteBuffer[] buffers = pending.nioBuffers(pending.readerIndex(), length);
+        channel.position(position);
+        long written = 0;
+        while (written < length) {
+            written += channel.write(buffers);
+        }
+        pending.skipBytes(length);
+        pending.discardReadComponents();
+        position += length;
+        pendingSinceNanos = System.nanoTime();
+        writtenBytes += length;
+    }
+}
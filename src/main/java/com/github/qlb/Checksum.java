@@ -0,0 +1,83 @@
+package com.github.qlb;
+
+import io.netty.util.internal.StringUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * The expected digest of a downloaded file, written as {@code algorithm:hex} like {@code sha256:9f86...}, or as bare
+ * hex whose length tells md5, sha1, sha256 or sha512.
+ */
+final class Checksum {
+    private static final int READ_SIZE = 1024 * 1024;
+    private final String algorithm;
+    private final String hex;
+
+    private Checksum(String algorithm, String hex) {
+        this.algorithm = algorithm;
+        this.hex = hex;
+    }
+
+    static Checksum parse(String text) {
+        final String value = text.trim().toLowerCase(Locale.ROOT);
+        final int colon = value.indexOf(':');
+        final String hex = colon < 0 ? value : value.substring(colon + 1);
+        final String algorithm = colon < 0 ? algorithmOfLength(hex.length()) : standardName(value.substring(0, colon));
+        try {
+            MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unknown checksum algorithm " + algorithm, e);
+        }
+        return new Checksum(algorithm, hex);
+    }
+
+    private static String algorithmOfLength(int length) {
+        switch (length) {
+            case 32:
+                return "MD5";
+            case 40:
+                return "SHA-1";
+            case 64:
+                return "SHA-256";
+            case 128:
+                return "SHA-512";
+            default:
+                throw new IllegalArgumentException("can not tell the algorithm of a checksum of " + length + " digits");
+        }
+    }
+
+    private static String standardName(String name) {
+        // sha256 and sha-256 both name SHA-256
+        return name.startsWith("sha") && !name.startsWith("sha-") ? "SHA-" + name.substring(3) : name.toUpperCase(Locale.ROOT);
+    }
+
+    boolean matches(Path file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return StringUtil.toHexString(digest.digest()).equals(hex);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.toLowerCase(Locale.ROOT).replace("-", "") + ":" + hex;
+    }
+}
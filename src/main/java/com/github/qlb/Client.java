@@ -1,57 +1,126 @@
 package com.github.qlb;
 
 
-import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
-import io.netty.handler.codec.http.HttpClientCodec;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Future;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class Client {
     private static final Logger LOG = LoggerFactory.getLogger(Client.class);
     private final HttpTask task;
+    private final Runnable onFailure;
     private final ChannelFutureListener logCloseListener;
-    private final EventLoopGroup group = new NioEventLoopGroup(1);
-    private volatile ChannelFuture connectionFuture;
+    private volatile Future<Channel> connectionFuture;
+    private volatile HttpHandler handler;
     private volatile ChannelFutureListener connectionCloseListener = f -> {};
     private volatile boolean closed;
 
     public Client(HttpTask task) {
+        this(task, task::failed);
+    }
+
+    /**
+     * @param onFailure called instead of {@link HttpTask#failed()} when the connection fails
+     */
+    public Client(HttpTask task, Runnable onFailure) {
         this.task = task;
+        this.onFailure = onFailure;
         logCloseListener = f -> LOG.info("connection {} is closed, task {} ", f.channel(), task);
     }
 
     public synchronized void start() {
-        Bootstrap bootstrap = new Bootstrap();
-        final Http http = task.getHttp();
-        doCloseCurrentConnection(false);
-        connectionFuture = bootstrap.group(group).channel(NioSocketChannel.class).handler(new ChannelInitializer<Channel>() {
-            @Override
-            protected void initChannel(Channel channel) throws Exception {
-                final ChannelPipeline pipeline = channel.pipeline();
-                if (http.isSecure()) {
-                    pipeline.addLast(SslContextBuilder
-                            .forClient()
-                            .trustManager(InsecureTrustManagerFactory.INSTANCE)
-                            .build().newHandler(channel.alloc(), http.getHost(), http.getPort()));
-                }
-                pipeline.addLast(new HttpClientCodec())
-                        .addLast(new HttpHandler(task));
+        doCloseCurrentConnection();
+        closed = false;
+        final HttpHandler handler = new HttpHandler(task, onFailure);
+        final Future<Channel> acquired = ConnectionPool.INSTANCE.acquire(handler.getTarget());
+        final ChannelFutureListener closeListener = closeListener(acquired);
+        connectionFuture = acquired;
+        this.handler = handler;
+        connectionCloseListener = closeListener;
+        acquired.addListener(f -> onAcquired(acquired, handler, closeListener));
+    }
+
+    /**
+     * Passes the current connection, including the response streaming on it, over to the client of another task.
+     */
+    public void handOver(Client target) {
+        final Future<Channel> acquired;
+        final HttpHandler handler;
+        synchronized (this) {
+            acquired = connectionFuture;
+            handler = this.handler;
+            if (acquired == null || !acquired.isSuccess()) {
+                throw new IllegalStateException("no connection to hand over, task " + task);
+            }
+            connectionFuture = null;
+            acquired.getNow().closeFuture().removeListener(logCloseListener);
+            acquired.getNow().closeFuture().removeListener(connectionCloseListener);
+        }
+        target.adopt(acquired, handler);
+    }
+
+    private synchronized void adopt(Future<Channel> acquired, HttpHandler handler) {
+        doCloseCurrentConnection();
+        closed = false;
+        handler.transferTo(task, onFailure);
+        final ChannelFutureListener closeListener = closeListener(acquired);
+        connectionFuture = acquired;
+        this.handler = handler;
+        connectionCloseListener = closeListener;
+        LOG.info("adopt connection {}, task {}", acquired.getNow(), task);
+        acquired.getNow().closeFuture().addListener(logCloseListener);
+        acquired.getNow().closeFuture().addListener(closeListener);
+    }
 
+    private ChannelFutureListener closeListener(Future<Channel> acquired) {
+        return f -> {
+            // an h2 stream closes itself after the response, which is no failure once the task moved on
+            if (connectionFuture == acquired) {
+                onFailure.run();
             }
-        }).connect(http.getHost(), http.getPort()).addListener((ChannelFutureListener) f -> {
-            if (f.isSuccess()) {
-                LOG.info("connect success, task {}, channel {}", task, f.channel());
-            } else {
-                LOG.error("connect fail, task {}, channel {}", task, f.channel(), f.cause());
+        };
+    }
+
+    private void onAcquired(Future<Channel> acquired, HttpHandler handler, ChannelFutureListener closeListener) {
+        synchronized (this) {
+            if (acquired != connectionFuture) {
+                // superseded by a restart or shutdown, which hands the channel back
+                return;
+            }
+            if (acquired.isSuccess()) {
+                final Channel channel = acquired.getNow();
+                LOG.info("connect success, task {}, channel {}", task, channel);
+                channel.closeFuture().addListener(logCloseListener);
+                channel.closeFuture().addListener(closeListener);
+                channel.pipeline().addLast(handler);
+                return;
             }
-        });
-        connectionCloseListener = f -> task.failed();
-        connectionFuture.channel().closeFuture().addListeners(logCloseListener, connectionCloseListener);
+        }
+        LOG.error("connect fail, task {}", task, acquired.cause());
+        onFailure.run();
+    }
+
+    /**
+     * Whether a connection is acquired or being acquired.
+     */
+    public boolean isActive() {
+        return connectionFuture != null;
+    }
+
+    /**
+     * Whether reading of the current connection was held by the {@link ReadGate} since the last call.
+     */
+    public boolean sampleHeld() {
+        final Future<Channel> acquired = connectionFuture;
+        return acquired != null && acquired.isSuccess() && ReadGate.sampleHeld(acquired.getNow());
+    }
+
+    /**
+     * Whether the handler serves the current request of this client.
+     */
+    public boolean isCurrent(ChannelHandler handler) {
+        return connectionFuture != null && this.handler == handler;
     }
 
     public synchronized void shutdown() {
@@ -59,30 +128,38 @@ public class Client {
             return;
         }
         closed = true;
-        doCloseCurrentConnection(true);
+        doCloseCurrentConnection();
     }
 
-    private void doCloseCurrentConnection(boolean shutdown) {
-        if (connectionFuture != null) {
-            final Channel channel = connectionFuture.channel();
-            channel.closeFuture().removeListener(connectionCloseListener);
-            connectionFuture.cancel(true);
-            if (channel.isOpen()) {
-                channel.close();
-            }
-            if (shutdown) {
-                group.shutdownGracefully();
-            }
-//            else {
-//                connectionFuture.addListener((ChannelFutureListener) future -> {
-//                    if (future.channel().isOpen()) {
-//                        future.channel().close();
-//                    }
-//                    if (shutdown) {
-//                        group.shutdownGracefully();
-//                    }
-//                });
-//            }
+    private void doCloseCurrentConnection() {
+        final Future<Channel> acquired = connectionFuture;
+        if (acquired != null) {
+            final HttpHandler handler = this.handler;
+            final ChannelFutureListener closeListener = connectionCloseListener;
+            connectionFuture = null;
+            acquired.addListener(f -> {
+                if (f.isSuccess()) {
+                    release(acquired.getNow(), handler, closeListener);
+                }
+            });
+        }
+    }
+
+    /**
+     * Hands a channel back to the pool, it is only kept open when its last exchange has completed cleanly.
+     */
+    private void release(Channel channel, HttpHandler handler, ChannelFutureListener closeListener) {
+        channel.closeFuture().removeListener(logCloseListener);
+        channel.closeFuture().removeListener(closeListener);
+        if (channel.pipeline().context(handler) != null) {
+            channel.pipeline().remove(handler);
+        }
+        // reading may be held for the memory budget or the rate of the task
+        ReadGate.reset(channel);
+        if (ConnectionPool.INSTANCE.isKeepAliveEnabled() && handler.isReusable() && channel.isActive()) {
+            ConnectionPool.INSTANCE.release(channel);
+        } else {
+            channel.close().addListener(f -> ConnectionPool.INSTANCE.release(channel));
         }
     }
 
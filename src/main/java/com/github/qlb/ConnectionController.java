@@ -0,0 +1,91 @@
+package com.github.qlb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how many connections a task should use, from the throughput measured on every tick.
+ * It starts at the minimum and doubles while throughput keeps rising, then probes one connection at a time.
+ * A probe that does not raise throughput is taken back, an error or a throttling response halves the count.
+ */
+final class ConnectionController {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionController.class);
+    private static final double RISE_FACTOR = 1.1;
+    private static final int HOLD_TICKS = 5;
+    private final int min;
+    private final int max;
+    private final AtomicInteger congestionSignals = new AtomicInteger();
+    private int target;
+    private boolean slowStart = true;
+    private boolean probing;
+    private int probeFrom;
+    private int holdTicks;
+    private long lastBytes = -1;
+    private long lastNanos;
+    private double lastRate;
+
+    ConnectionController(int min, int max) {
+        if (min <= 0 || max < min) {
+            throw new IllegalArgumentException("connections should satisfy 0 < min <= max");
+        }
+        this.min = min;
+        this.max = max;
+        this.target = min;
+    }
+
+    /**
+     * A connection failed or the server asked to slow down.
+     */
+    void congested() {
+        congestionSignals.incrementAndGet();
+    }
+
+    synchronized int target() {
+        return target;
+    }
+
+    /**
+     * Feed the bytes read so far and get the number of connections to use until the next tick.
+     *
+     * @param limit the most connections the task may use now, its share of the connections of all tasks
+     */
+    synchronized int tick(long readBytes, long nanos, int limit) {
+        final int cap = Math.max(min, Math.min(max, limit));
+        if (lastBytes < 0) {
+            lastBytes = readBytes;
+            lastNanos = nanos;
+            return target;
+        }
+        final double rate = (readBytes - lastBytes) * 1e9 / Math.max(1, nanos - lastNanos);
+        lastBytes = readBytes;
+        lastNanos = nanos;
+        final int previous = target;
+        if (congestionSignals.getAndSet(0) > 0) {
+            target = Math.max(min, target / 2);
+            slowStart = false;
+            probing = false;
+            holdTicks = HOLD_TICKS;
+        } else if (holdTicks > 0) {
+            holdTicks--;
+        } else if (probing && rate <= lastRate * RISE_FACTOR) {
+            // the last connections added nothing, take them back and stay there for a while
+            target = probeFrom;
+            slowStart = false;
+            probing = false;
+            holdTicks = HOLD_TICKS;
+        } else {
+            probeFrom = target;
+            target = Math.min(cap, slowStart ? target * 2 : target + 1);
+            probing = target != probeFrom;
+        }
+        // other tasks started since the last tick
+        target = Math.min(target, cap);
+        lastRate = rate;
+        if (target != previous) {
+            LOG.info("connections {} -> {}, throughput {} B/s", previous, target, (long) rate);
+        }
+        return target;
+    }
+}
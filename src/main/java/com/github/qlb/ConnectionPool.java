@@ -0,0 +1,491 @@
+package com.github.qlb;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.DefaultChannelPromise;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keep-alive connections shared by all tasks, pooled per host and port.
+ * A channel is checked out by a {@link Client} for one request and checked back in once the response is consumed.
+ * When a secure origin negotiates h2 through ALPN, its single connection stays checked out and every request
+ * gets a stream channel of that connection instead.
+ */
+public enum ConnectionPool {
+    INSTANCE;
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final AttributeKey<FixedChannelPool> POOL = AttributeKey.valueOf("jget.pool");
+    private static final AttributeKey<Boolean> IDLE = AttributeKey.valueOf("jget.idle");
+    private static final AttributeKey<Future<String>> PROTOCOL = AttributeKey.valueOf("jget.protocol");
+    private static final String CODEC_NAME = "codec";
+    private static final int DEFAULT_KEEP_ALIVE_SECONDS = 30;
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 16;
+    private static final int HTTP2_STREAM_WINDOW = 8 << 20;
+    private static final int HTTP2_CONNECTION_WINDOW = 64 << 20;
+    private static final long CONNECTION_ATTEMPT_DELAY_MS = 250;
+    private static final int SSL_SESSION_CACHE_SIZE = 1024;
+    private static final int SSL_SESSION_TIMEOUT_SECONDS = 3600;
+    private int maxConnectionsPerHost = Math.max(DEFAULT_MAX_CONNECTIONS_PER_HOST, Runtime.getRuntime().availableProcessors() * 2);
+    private int keepAliveSeconds = DEFAULT_KEEP_ALIVE_SECONDS;
+    private boolean http2 = true;
+    private SslProvider sslProvider = SslProvider.JDK;
+    private SslContext sslContext;
+    private AbstractChannelPoolMap<Endpoint, FixedChannelPool> pools;
+    private final Map<Endpoint, Future<Channel>> http2Connections = new ConcurrentHashMap<>();
+    private final Set<Endpoint> http1Endpoints = ConcurrentHashMap.newKeySet();
+
+    public synchronized void configure(CommandLine cli) throws ParseException {
+        maxConnectionsPerHost = (int) DownloadOptions.longValue(cli, DownloadOptions.MAX_CONNECTIONS_PER_HOST,
+                1, Integer.MAX_VALUE, maxConnectionsPerHost);
+        keepAliveSeconds = (int) DownloadOptions.longValue(cli, DownloadOptions.KEEP_ALIVE,
+                0, Integer.MAX_VALUE, keepAliveSeconds);
+        http2 = !cli.hasOption(DownloadOptions.NO_HTTP2);
+        if (cli.hasOption(DownloadOptions.SSL_PROVIDER)) {
+            sslProvider = DownloadOptions.enumValue(cli, DownloadOptions.SSL_PROVIDER, SslProvider.class);
+        }
+        sslContext = null;
+    }
+
+    public Future<Channel> acquire(Http http) {
+        return acquire(new Endpoint(http.getHost(), http.getPort(), http.isSecure()));
+    }
+
+    private Future<Channel> acquire(Endpoint endpoint) {
+        final FixedChannelPool pool = pools().get(endpoint);
+        if (!endpoint.secure || !http2 || http1Endpoints.contains(endpoint)) {
+            return pool.acquire();
+        }
+        final Promise<Channel> result = GlobalEventExecutor.INSTANCE.newPromise();
+        final Promise<Channel> negotiating = GlobalEventExecutor.INSTANCE.newPromise();
+        final Future<Channel> connection = http2Connections.putIfAbsent(endpoint, negotiating);
+        if (connection == null) {
+            // only one connection per endpoint negotiates, the others wait to learn whether h2 is spoken
+            negotiate(endpoint, pool, negotiating, result);
+        } else {
+            connection.addListener(f -> {
+                if (f.isSuccess() && connection.getNow().isActive()) {
+                    openStream(connection.getNow(), result);
+                } else {
+                    http2Connections.remove(endpoint, connection);
+                    cascade(acquire(endpoint), result);
+                }
+            });
+        }
+        return result;
+    }
+
+    private void negotiate(Endpoint endpoint, FixedChannelPool pool, Promise<Channel> negotiating, Promise<Channel> result) {
+        pool.acquire().addListener(f -> {
+            if (!f.isSuccess()) {
+                http2Connections.remove(endpoint, negotiating);
+                negotiating.setFailure(f.cause());
+                result.setFailure(f.cause());
+                return;
+            }
+            final Channel channel = (Channel) f.getNow();
+            channel.attr(PROTOCOL).get().addListener(p -> {
+                if (p.isSuccess() && ApplicationProtocolNames.HTTP_2.equals(p.getNow())) {
+                    LOG.info("use h2 connection {} for {}", channel, endpoint);
+                    channel.closeFuture().addListener(c -> {
+                        http2Connections.remove(endpoint, negotiating);
+                        pool.release(channel);
+                    });
+                    negotiating.setSuccess(channel);
+                    openStream(channel, result);
+                } else {
+                    if (p.isSuccess()) {
+                        http1Endpoints.add(endpoint);
+                    }
+                    http2Connections.remove(endpoint, negotiating);
+                    negotiating.setFailure(p.isSuccess()
+                            ? new IllegalStateException(endpoint + " does not speak h2") : p.cause());
+                    result.setSuccess(channel);
+                }
+            });
+        });
+    }
+
+    private static void cascade(Future<Channel> source, Promise<Channel> target) {
+        source.addListener(f -> {
+            if (f.isSuccess()) {
+                target.setSuccess(source.getNow());
+            } else {
+                target.setFailure(f.cause());
+            }
+        });
+    }
+
+    private void openStream(Channel connection, Promise<Channel> result) {
+        new Http2StreamChannelBootstrap(connection)
+                .handler(new Http2StreamFrameToHttpObjectCodec(false))
+                .open()
+                .addListener(f -> {
+                    if (f.isSuccess()) {
+                        result.setSuccess((Channel) f.getNow());
+                    } else {
+                        result.setFailure(f.cause());
+                    }
+                });
+    }
+
+    /**
+     * Give a channel back to the pool it was acquired from; closed channels are dropped by the pool.
+     */
+    public void release(Channel channel) {
+        final FixedChannelPool pool = channel.attr(POOL).get();
+        if (pool != null) {
+            pool.release(channel);
+        } else {
+            channel.close();
+        }
+    }
+
+    /**
+     * Put a fresh http/1.1 codec on the channel, after a body bypassed the one in place.
+     */
+    public void resetCodec(Channel channel) {
+        channel.pipeline().replace(CODEC_NAME, CODEC_NAME, new HttpClientCodec());
+    }
+
+    public boolean isKeepAliveEnabled() {
+        return keepAliveSeconds > 0;
+    }
+
+    public synchronized void close() {
+        for (Future<Channel> connection : http2Connections.values()) {
+            if (connection.isSuccess()) {
+                connection.getNow().close();
+            }
+        }
+        http2Connections.clear();
+        if (pools != null) {
+            // never block, this is usually called on an event loop which owns some of the pooled channels
+            for (Map.Entry<Endpoint, FixedChannelPool> pool : pools) {
+                pool.getValue().closeAsync();
+            }
+            pools = null;
+        }
+    }
+
+    /**
+     * One client context for the whole process, building it per connection would also throw away its session cache.
+     */
+    private synchronized SslContext sslContext() throws SSLException {
+        if (sslContext == null) {
+            SslProvider provider = sslProvider;
+            if (provider == SslProvider.OPENSSL && !OpenSsl.isAvailable()) {
+                LOG.warn("openssl is not available, fall back to jdk", OpenSsl.unavailabilityCause());
+                provider = SslProvider.JDK;
+            }
+            final SslContextBuilder ssl = SslContextBuilder
+                    .forClient()
+                    .sslProvider(provider)
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .sessionCacheSize(SSL_SESSION_CACHE_SIZE)
+                    .sessionTimeout(SSL_SESSION_TIMEOUT_SECONDS);
+            if (http2) {
+                ssl.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+                        .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                ApplicationProtocolConfig.Protocol.ALPN,
+                                ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                ApplicationProtocolNames.HTTP_2,
+                                ApplicationProtocolNames.HTTP_1_1));
+            }
+            sslContext = ssl.build();
+            LOG.info("build {} ssl context", provider);
+        }
+        return sslContext;
+    }
+
+    private synchronized AbstractChannelPoolMap<Endpoint, FixedChannelPool> pools() {
+        if (pools == null) {
+            pools = new AbstractChannelPoolMap<Endpoint, FixedChannelPool>() {
+                @Override
+                protected FixedChannelPool newPool(Endpoint endpoint) {
+                    LOG.info("create connection pool for {}, max connections {}", endpoint, maxConnectionsPerHost);
+                    final PoolHandler handler = new PoolHandler(endpoint);
+                    handler.pool = new HappyEyeballsChannelPool(endpoint, handler);
+                    return handler.pool;
+                }
+            };
+        }
+        return pools;
+    }
+
+    /**
+     * Connects through the shared resolver, racing the resolved addresses as happy eyeballs (RFC 8305) does:
+     * the next address is tried whenever the previous attempt failed or did not connect within the attempt delay.
+     */
+    private final class HappyEyeballsChannelPool extends FixedChannelPool {
+        private final Endpoint endpoint;
+
+        private HappyEyeballsChannelPool(Endpoint endpoint, PoolHandler handler) {
+            super(TransportRuntime.INSTANCE.bootstrap().remoteAddress(endpoint.host, endpoint.port),
+                    handler, maxConnectionsPerHost);
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        protected ChannelFuture connectChannel(Bootstrap bootstrap) {
+            final ChannelFuture registered = bootstrap.register();
+            final ConnectPromise promise = new ConnectPromise(registered.channel());
+            registered.addListener(r -> {
+                if (!r.isSuccess()) {
+                    promise.setFailure(r.cause());
+                    return;
+                }
+                HostResolver.INSTANCE.resolveAll(registered.channel().eventLoop(), endpoint.host, endpoint.port)
+                        .addListener(f -> {
+                            if (!f.isSuccess()) {
+                                registered.channel().close();
+                                promise.setFailure(f.cause());
+                                return;
+                            }
+                            @SuppressWarnings("unchecked")
+                            final List<InetSocketAddress> addresses = (List<InetSocketAddress>) f.getNow();
+                            if (addresses.isEmpty()) {
+                                registered.channel().close();
+                                promise.setFailure(new UnknownHostException(endpoint.host));
+                            } else {
+                                promise.attempt(bootstrap, addresses, 0);
+                            }
+                        });
+            });
+            return promise;
+        }
+    }
+
+    /**
+     * Completes with whichever connection attempt wins; {@link #channel()} reports the winner.
+     */
+    private static final class ConnectPromise extends DefaultChannelPromise {
+        private final Channel first;
+        private final List<Channel> attempts = new CopyOnWriteArrayList<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger launched = new AtomicInteger();
+        private volatile Channel winner;
+
+        private ConnectPromise(Channel first) {
+            super(first, first.eventLoop());
+            this.first = first;
+        }
+
+        @Override
+        public Channel channel() {
+            final Channel channel = winner;
+            return channel != null ? channel : first;
+        }
+
+        private void attempt(Bootstrap bootstrap, List<InetSocketAddress> addresses, int index) {
+            if (isDone()) {
+                return;
+            }
+            final InetSocketAddress address = addresses.get(index);
+            final ChannelFuture connect = index == 0 ? first.connect(address) : bootstrap.connect(address);
+            attempts.add(connect.channel());
+            pending.incrementAndGet();
+            launched.incrementAndGet();
+            final boolean last = index == addresses.size() - 1;
+            final ScheduledFuture<?> next = last ? null : first.eventLoop().schedule(
+                    () -> attempt(bootstrap, addresses, index + 1), CONNECTION_ATTEMPT_DELAY_MS, TimeUnit.MILLISECONDS);
+            connect.addListener(f -> {
+                pending.decrementAndGet();
+                if (f.isSuccess()) {
+                    if (winner == null) {
+                        winner = connect.channel();
+                        if (next != null) {
+                            next.cancel(false);
+                        }
+                        for (Channel attempt : attempts) {
+                            if (attempt != winner) {
+                                attempt.close();
+                            }
+                        }
+                        trySuccess();
+                    } else {
+                        connect.channel().close();
+                    }
+                } else {
+                    LOG.debug("connect {} failed", address, f.cause());
+                    if (next != null && next.cancel(false)) {
+                        attempt(bootstrap, addresses, index + 1);
+                    } else if (pending.get() == 0 && launched.get() == addresses.size()) {
+                        tryFailure(f.cause());
+                    }
+                }
+            });
+        }
+    }
+
+    private final class PoolHandler extends AbstractChannelPoolHandler {
+        private final Endpoint endpoint;
+        private FixedChannelPool pool;
+
+        private PoolHandler(Endpoint endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public void channelCreated(Channel channel) throws Exception {
+            channel.attr(POOL).set(pool);
+            final ChannelPipeline pipeline = channel.pipeline();
+            final Promise<String> protocol = channel.eventLoop().newPromise();
+            channel.attr(PROTOCOL).set(protocol);
+            if (endpoint.secure) {
+                // the peer host and port key the session cache, so reconnects resume instead of full handshakes
+                pipeline.addLast(sslContext().newHandler(channel.alloc(), endpoint.host, endpoint.port));
+                if (http2) {
+                    pipeline.addLast(new ProtocolNegotiationHandler(protocol));
+                } else {
+                    protocol.setSuccess(ApplicationProtocolNames.HTTP_1_1);
+                }
+            } else {
+                protocol.setSuccess(ApplicationProtocolNames.HTTP_1_1);
+            }
+            pipeline.addLast(CODEC_NAME, new HttpClientCodec());
+            if (keepAliveSeconds > 0) {
+                pipeline.addLast(new IdleStateHandler(0, 0, keepAliveSeconds), new KeepAliveHandler());
+            }
+        }
+
+        @Override
+        public void channelAcquired(Channel channel) {
+            channel.attr(IDLE).set(false);
+        }
+
+        @Override
+        public void channelReleased(Channel channel) {
+            channel.attr(IDLE).set(true);
+        }
+    }
+
+    /**
+     * Swaps the http/1.1 codec for h2 framing when ALPN selects h2, and publishes the selected protocol.
+     */
+    private static final class ProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+        private final Promise<String> protocol;
+
+        private ProtocolNegotiationHandler(Promise<String> protocol) {
+            super(ApplicationProtocolNames.HTTP_1_1);
+            this.protocol = protocol;
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                final ChannelPipeline pipeline = ctx.pipeline();
+                pipeline.replace(CODEC_NAME, CODEC_NAME, Http2FrameCodecBuilder.forClient()
+                        .initialSettings(Http2Settings.defaultSettings()
+                                .pushEnabled(false)
+                                .initialWindowSize(HTTP2_STREAM_WINDOW))
+                        .build());
+                pipeline.addAfter(CODEC_NAME, null, new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                // the connection window is not part of SETTINGS, it can only grow through a WINDOW_UPDATE
+                ctx.channel().writeAndFlush(new DefaultHttp2WindowUpdateFrame(
+                        HTTP2_CONNECTION_WINDOW - Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+            }
+            this.protocol.setSuccess(protocol);
+        }
+
+        @Override
+        protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            protocol.tryFailure(cause);
+            super.handshakeFailure(ctx, cause);
+        }
+    }
+
+    /**
+     * Closes pooled connections which stayed unused longer than the keep-alive time.
+     */
+    private static final class KeepAliveHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof IdleStateEvent) {
+                if (Boolean.TRUE.equals(ctx.channel().attr(IDLE).get())) {
+                    LOG.debug("close idle pooled connection {}", ctx.channel());
+                    ctx.close();
+                }
+            } else {
+                super.userEventTriggered(ctx, evt);
+            }
+        }
+    }
+
+    private static final class Endpoint {
+        private final String host;
+        private final int port;
+        private final boolean secure;
+
+        private Endpoint(String host, int port, boolean secure) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Endpoint endpoint = (Endpoint) o;
+            return port == endpoint.port && secure == endpoint.secure && host.equals(endpoint.host);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(host, port, secure);
+        }
+
+        @Override
+        public String toString() {
+            return (secure ? "https://" : "http://") + host + ":" + port;
+        }
+    }
+}
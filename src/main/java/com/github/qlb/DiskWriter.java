@@ -0,0 +1,123 @@
+package com.github.qlb;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide threads writing received content to disk, so a slow disk never blocks an event loop.
+ * Content waiting for the disk is bounded by the {@link MemoryBudget}.
+ */
+public enum DiskWriter {
+    INSTANCE;
+    private static final Logger LOG = LoggerFactory.getLogger(DiskWriter.class);
+    private static final int DEFAULT_DISK_THREADS = 2;
+    private final Set<BlockWriter> holding = ConcurrentHashMap.newKeySet();
+    /**
+     * Bytes of each file store that files being allocated still need, guarded by itself.
+     */
+    private final Map<FileStore, Long> claimed = new HashMap<>();
+    private int diskThreads = DEFAULT_DISK_THREADS;
+    private OutputMode outputMode = OutputMode.channel;
+    private ExecutorService executor;
+
+    enum OutputMode {
+        channel,
+        mmap
+    }
+
+    public synchronized void configure(CommandLine cli) throws ParseException {
+        diskThreads = (int) DownloadOptions.longValue(cli, DownloadOptions.DISK_THREADS, 1, Integer.MAX_VALUE, diskThreads);
+        if (cli.hasOption(DownloadOptions.OUTPUT_MODE)) {
+            outputMode = DownloadOptions.enumValue(cli, DownloadOptions.OUTPUT_MODE, OutputMode.class);
+        }
+    }
+
+    /**
+     * Whether content is copied into mapped windows of the file, for files whose size is known up front.
+     */
+    boolean isMapped() {
+        return outputMode == OutputMode.mmap;
+    }
+
+    synchronized void execute(Runnable command) {
+        if (executor == null || executor.isShutdown()) {
+            executor = Executors.newFixedThreadPool(diskThreads, new DefaultThreadFactory("jget-disk"));
+            LOG.info("start {} disk threads", diskThreads);
+        }
+        executor.execute(command);
+    }
+
+    /**
+     * Whether the writer holds content back to be coalesced with later content.
+     */
+    void holding(BlockWriter writer, boolean holds) {
+        if (holds) {
+            holding.add(writer);
+        } else {
+            holding.remove(writer);
+        }
+    }
+
+    /**
+     * Write out what writers hold back to be coalesced with later content.
+     */
+    void flushHolding() {
+        for (BlockWriter writer : holding) {
+            writer.flush();
+        }
+    }
+
+    /**
+     * Claims space on the file store of the file before it is allocated. The usable space does not show what other
+     * allocations still need, so their claims are subtracted from it, and tasks allocating side by side can not all
+     * count on the same free space.
+     *
+     * @return the store to give the claim back to as the file is allocated
+     */
+    FileStore claim(Path file, long bytes) throws IOException {
+        final FileStore store = Files.getFileStore(file);
+        synchronized (claimed) {
+            final long usable = store.getUsableSpace();
+            final long others = claimed.getOrDefault(store, 0L);
+            if (usable - others < bytes) {
+                throw new IOException(String.format("not enough space for %s, %d more bytes are needed but %d are "
+                        + "usable and %d of them are claimed by other downloads", file, bytes, usable, others));
+            }
+            claimed.merge(store, bytes, Long::sum);
+        }
+        return store;
+    }
+
+    /**
+     * Gives back claimed bytes, once they are allocated or will not be.
+     */
+    void unclaim(FileStore store, long bytes) {
+        synchronized (claimed) {
+            claimed.computeIfPresent(store, (key, left) -> left > bytes ? left - bytes : null);
+        }
+    }
+
+    /**
+     * Lets the queued writes finish, the threads end after them.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+}
@@ -1,14 +1,28 @@
 package com.github.qlb;
 
+import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.stream.Collectors;
 
 public class DownloadOptions {
 
     public static final Option URL = Option.builder()
             .option("u")
             .argName("url")
-            .desc("download url")
+            .desc("download url, repeat it to add mirrors of the same file")
+            .hasArg()
+            .build();
+
+    public static final Option INPUT_FILE = Option.builder()
+            .option("i")
+            .argName("manifest")
+            .desc("download every file listed in the manifest, - reads it from stdin. A line is a url or a json object "
+                    + "with url and optional name, checksum and priority, files that already exist are skipped")
             .hasArg()
             .build();
 
@@ -56,10 +70,220 @@ public class DownloadOptions {
             .hasArg(false)
             .build();
 
+    public static final Option IO_THREADS = Option.builder()
+            .longOpt("io-threads")
+            .desc("number of io threads shared by all connections, default is the number of processors")
+            .hasArg()
+            .argName("threads")
+            .build();
+
+    public static final Option TRANSPORT = Option.builder()
+            .longOpt("transport")
+            .desc("network transport: auto, nio, epoll or io_uring, default is auto which prefers native transports on linux")
+            .hasArg()
+            .argName("transport")
+            .build();
+
+    public static final Option RECEIVE_BUFFER = Option.builder()
+            .longOpt("receive-buffer")
+            .desc("socket receive buffer in KiB, by default the kernel sizes it and grows it with the link")
+            .hasArg()
+            .argName("KiB")
+            .build();
+
+    public static final Option MAX_CONNECTIONS_PER_HOST = Option.builder()
+            .longOpt("max-connections-per-host")
+            .desc("max number of connections to one host, default is 16 or twice the number of processors if that is more")
+            .hasArg()
+            .argName("connections")
+            .build();
+
+    public static final Option KEEP_ALIVE = Option.builder()
+            .longOpt("keep-alive")
+            .desc("seconds an idle connection is kept for reuse, 0 disables connection reuse, default is 30")
+            .hasArg()
+            .argName("seconds")
+            .build();
+
+    public static final Option NO_HTTP2 = Option.builder()
+            .longOpt("no-http2")
+            .desc("do not negotiate h2 with https origins, use one http/1.1 connection per subtask")
+            .hasArg(false)
+            .build();
+
+    public static final Option SSL_PROVIDER = Option.builder()
+            .longOpt("ssl-provider")
+            .desc("tls implementation: jdk or openssl, openssl falls back to jdk when it can not be loaded, default is jdk")
+            .hasArg()
+            .argName("provider")
+            .build();
+
+    public static final Option SPREAD_ADDRESSES = Option.builder()
+            .longOpt("spread-addresses")
+            .desc("spread the connections to a host over all of its resolved addresses")
+            .hasArg(false)
+            .build();
+
+    public static final Option BLOCK_SIZE = Option.builder()
+            .longOpt("block-size")
+            .desc("size in KiB of the blocks connections take from the work queue, default is 4096")
+            .hasArg()
+            .argName("KiB")
+            .build();
+
+    public static final Option MIN_CONNECTIONS = Option.builder()
+            .longOpt("min-connections")
+            .desc("connections a task starts with and never goes below, default is 2")
+            .hasArg()
+            .argName("connections")
+            .build();
+
+    public static final Option MAX_CONNECTIONS = Option.builder()
+            .longOpt("max-connections")
+            .desc("connections a task may grow to while throughput keeps rising, default is 16")
+            .hasArg()
+            .argName("connections")
+            .build();
+
+    public static final Option SPEED_LIMIT = Option.builder()
+            .longOpt("speed-limit")
+            .desc("bytes per second below which a connection counts as stalled, 0 disables the check, default is 1024")
+            .hasArg()
+            .argName("bytes")
+            .build();
+
+    public static final Option SPEED_TIME = Option.builder()
+            .longOpt("speed-time")
+            .desc("seconds a connection may stay below the speed limit before it is restarted, default is 10")
+            .hasArg()
+            .argName("seconds")
+            .build();
+
+    public static final Option MAX_RANGES = Option.builder()
+            .longOpt("max-ranges")
+            .desc("most small holes of a file one request may ask for as multipart byteranges, 1 disables it, default is 8")
+            .hasArg()
+            .argName("ranges")
+            .build();
+
+    public static final Option DISK_THREADS = Option.builder()
+            .longOpt("disk-threads")
+            .desc("number of threads writing downloaded content to disk, default is 2")
+            .hasArg()
+            .argName("threads")
+            .build();
+
+    public static final Option MEMORY_BUDGET = Option.builder()
+            .longOpt("memory-budget")
+            .desc("MiB of received content all tasks together may hold until it is on disk, connections stop reading "
+                    + "beyond it, default is 32")
+            .hasArg()
+            .argName("MiB")
+            .build();
+
+    public static final Option OUTPUT_MODE = Option.builder()
+            .longOpt("output-mode")
+            .desc("how content goes into the file: channel writes it, mmap copies it into mapped windows of the file, "
+                    + "default is channel")
+            .hasArg()
+            .argName("mode")
+            .build();
+
+    public static final Option SPLICE = Option.builder()
+            .longOpt("splice")
+            .desc("splice the body of plain http range responses from the socket straight into the file, "
+                    + "needs the epoll transport, responses ending past 2 GiB of the file are copied")
+            .hasArg(false)
+            .build();
+
+    public static final Option SYNC_INTERVAL = Option.builder()
+            .longOpt("sync-interval")
+            .desc("seconds between syncs of downloaded files, progress is only stored for synced bytes, default is 2")
+            .hasArg()
+            .argName("seconds")
+            .build();
+
+    public static final Option LIMIT_RATE = Option.builder()
+            .longOpt("limit-rate")
+            .desc("bytes per second all tasks together may receive, shared fairly between them, 0 is unlimited, "
+                    + "default is 0")
+            .hasArg()
+            .argName("bytes")
+            .build();
+
+    public static final Option TASK_LIMIT_RATE = Option.builder()
+            .longOpt("task-limit-rate")
+            .desc("bytes per second one task may receive, 0 is unlimited, default is 0")
+            .hasArg()
+            .argName("bytes")
+            .build();
+
+    public static final Option MAX_ACTIVE_TASKS = Option.builder()
+            .longOpt("max-active-tasks")
+            .desc("tasks downloading at the same time, the others wait in the queue, default is 5")
+            .hasArg()
+            .argName("tasks")
+            .build();
+
+    public static final Option MAX_TOTAL_CONNECTIONS = Option.builder()
+            .longOpt("max-total-connections")
+            .desc("connections all active tasks together may use, shared equally between them, default is 64")
+            .hasArg()
+            .argName("connections")
+            .build();
+
+    public static final Option PRIORITY = Option.builder()
+            .longOpt("priority")
+            .desc("priority of the new task, or the new priority of the task -r resumes, queued tasks of a higher "
+                    + "priority start first, default is 0")
+            .hasArg()
+            .argName("priority")
+            .build();
+
+    /**
+     * The constant the option names in any case, or null if the option is not given.
+     */
+    static <E extends Enum<E>> E enumValue(CommandLine cli, Option option, Class<E> type) throws ParseException {
+        if (!cli.hasOption(option)) {
+            return null;
+        }
+        final String value = cli.getOptionValue(option);
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equalsIgnoreCase(value)) {
+                return constant;
+            }
+        }
+        throw new ParseException("unknown " + option.getLongOpt() + " " + value + ", accepted are "
+                + Arrays.stream(type.getEnumConstants()).map(constant -> constant.name().toLowerCase(Locale.ROOT))
+                .collect(Collectors.joining(", ")));
+    }
+
+    /**
+     * The number the option gives, or {@code defaultValue} if the option is not given. The range is checked before
+     * the caller scales the number to a unit, so a scaled value can not overflow.
+     */
+    static long longValue(CommandLine cli, Option option, long min, long max, long defaultValue) throws ParseException {
+        if (!cli.hasOption(option)) {
+            return defaultValue;
+        }
+        final String value = cli.getOptionValue(option);
+        final long number;
+        try {
+            number = Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException(option.getLongOpt() + " should be a number, not " + value);
+        }
+        if (number < min || number > max) {
+            throw new ParseException(option.getLongOpt() + " should be "
+                    + (max == Long.MAX_VALUE ? ">= " + min : "between " + min + " and " + max) + ", not " + value);
+        }
+        return number;
+    }
 
     public static Options getDefaultOptions() {
         return new Options()
                 .addOption(URL)
+                .addOption(INPUT_FILE)
                 .addOption(HOME_DIR)
                 .addOption(HELP)
                 .addOption(LIST_TASKS)
@@ -67,6 +291,30 @@ public class DownloadOptions {
                 .addOption(RESUME_ALL)
                 .addOption(DELETE)
                 .addOption(DELETE_ALL)
+                .addOption(IO_THREADS)
+                .addOption(TRANSPORT)
+                .addOption(RECEIVE_BUFFER)
+                .addOption(MAX_CONNECTIONS_PER_HOST)
+                .addOption(KEEP_ALIVE)
+                .addOption(NO_HTTP2)
+                .addOption(SSL_PROVIDER)
+                .addOption(SPREAD_ADDRESSES)
+                .addOption(BLOCK_SIZE)
+                .addOption(MIN_CONNECTIONS)
+                .addOption(MAX_CONNECTIONS)
+                .addOption(SPEED_LIMIT)
+                .addOption(SPEED_TIME)
+                .addOption(MAX_RANGES)
+                .addOption(DISK_THREADS)
+                .addOption(MEMORY_BUDGET)
+                .addOption(OUTPUT_MODE)
+                .addOption(SPLICE)
+                .addOption(SYNC_INTERVAL)
+                .addOption(LIMIT_RATE)
+                .addOption(TASK_LIMIT_RATE)
+                .addOption(MAX_ACTIVE_TASKS)
+                .addOption(MAX_TOTAL_CONNECTIONS)
+                .addOption(PRIORITY)
                 ;
     }
 }
@@ -1,35 +1,53 @@
 package com.github.qlb;
 
-import io.netty.channel.ChannelHandlerContext;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.HttpContent;
-import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 public class DownloadSubTask extends HttpTask implements Retryable {
     private static final Logger LOG = LoggerFactory.getLogger(DownloadSubTask.class);
     private static final int MAX_RETRY = 3;
     private final DownloadTask parent;
-    private final Range range;
-    private volatile SeekableByteChannel targetFileChannel;
-    private boolean finished;
+    private volatile Range range;
+    private final BlockWriter writer;
+    private volatile boolean finished;
     private final int index;
-    private volatile ScheduledFuture<?> idleProcess;
-    private long readBytes;
+    private volatile long readBytes;
     private int retry;
+    private volatile Mirror mirror;
+    private final Deque<Range> batch = new ArrayDeque<>();
+    /**
+     * Received parts queued for the disk and not written yet, in the order they are written.
+     */
+    private final Deque<Range> unwritten = new ArrayDeque<>();
+    private final Client hedgeClient = new Client(this, this::hedgeFailed);
+    private boolean hedging;
+    private long receivedBytes;
+    private long sampledBytes;
+    /**
+     * Whether the response to the current request of the main connection has begun, only then is its speed judged.
+     */
+    private boolean responding;
+    private long windowStartNanos = System.nanoTime();
+    private long windowBytes;
+    private long blockStartNanos = System.nanoTime();
 
     public DownloadSubTask(DownloadTask parent, int index, Range range) {
         this.parent = parent;
         this.index = index;
         this.range = range;
         this.finished = false;
-        this.client = new Client(this);
+        this.mirror = parent.primaryMirror();
+        this.writer = newWriter();
     }
 
     public DownloadSubTask(DownloadTask parent, int index, Range range, long readBytes) {
@@ -37,8 +55,9 @@ public class DownloadSubTask extends HttpTask implements Retryable {
         this.index = index;
         this.range = range;
         this.finished = range.size() > 0 && readBytes >= range.size();
-        this.client = new Client(this);
         this.readBytes = readBytes;
+        this.mirror = parent.primaryMirror();
+        this.writer = newWriter();
     }
 
 
@@ -47,19 +66,68 @@ public class DownloadSubTask extends HttpTask implements Retryable {
         return parent.targetFileDirectory();
     }
 
+    @Override
+    public void start() {
+        synchronized (this) {
+            responding = false;
+        }
+        super.start();
+    }
+
     public void restart() {
         LOG.info("restart subtask {}", this);
+        if (range.size() <= 0) {
+            // without a known size the body can only be requested again from the start
+            readBytes = 0;
+        }
         start();
     }
 
     public void finished() {
         client.shutdown();
+        stopHedge();
+        writer.close();
         this.finished = true;
         parent.subTaskFinished();
     }
 
+    /**
+     * @param responseDone whether the response that filled the block has ended
+     */
+    private void blockFinished(boolean responseDone) {
+        stopHedge();
+        parent.mirrorSucceeded(mirror, range.size(), System.nanoTime() - blockStartNanos);
+        final Range batched = pollBatch();
+        if (batched != null) {
+            assign(batched);
+            retry = 0;
+            if (responseDone) {
+                start();
+            }
+            // otherwise the next part of the multipart response fills it
+            return;
+        }
+        final Range next = parent.nextBlock(this);
+        if (next == null) {
+            LOG.info("subtask {}, finished", this);
+            finished();
+            return;
+        }
+        assign(next);
+        moveTo(parent.mirrorFor(next));
+        LOG.info("subtask {} continues with block {}", index, next);
+        retry = 0;
+        start();
+    }
+
     @Override
     public void failed() {
+        if (finished) {
+            // retired, there is nothing left to retry
+            return;
+        }
+        parent.congested();
+        parent.mirrorFailed(this);
         if (canRetry()) {
             retry();
         } else {
@@ -71,10 +139,353 @@ public class DownloadSubTask extends HttpTask implements Retryable {
     @Override
     public void stop() {
         client.shutdown();
+        stopHedge();
+        writer.close();
+    }
+
+    private BlockWriter newWriter() {
+        return new BlockWriter(parent.tmpFilePath(), new BlockWriter.Listener() {
+            @Override
+            public void written(long bytes) {
+                DownloadSubTask.this.written(bytes);
+            }
+
+            @Override
+            public void writeFailed(IOException e) {
+                LOG.error("subtask {} can not write", DownloadSubTask.this);
+                parent.subTaskFailed(DownloadSubTask.this);
+            }
+        });
+    }
+
+    private void written(long bytes) {
+        final boolean drained;
+        synchronized (this) {
+            long left = bytes;
+            while (left > 0 && !unwritten.isEmpty()) {
+                final Range head = unwritten.poll();
+                if (head.size() > left) {
+                    unwritten.addFirst(new Range(head.getStart() + left, head.getEnd()));
+                    left = 0;
+                } else {
+                    left -= head.size();
+                }
+            }
+            drained = finished && unwritten.isEmpty();
+        }
+        parent.reportRead(bytes);
+        if (drained) {
+            parent.subTaskFinished();
+        }
+    }
+
+    /**
+     * Whether received bytes still wait for the disk.
+     */
+    synchronized boolean isWriting() {
+        return !unwritten.isEmpty();
+    }
+
+    synchronized long unwrittenBytes() {
+        long bytes = 0;
+        for (Range part : unwritten) {
+            bytes += part.size();
+        }
+        return bytes;
     }
 
-    public SubTaskSnapshot snapshot() {
-        return new SubTaskSnapshot(index, range, readBytes);
+    /**
+     * Received parts that are not on disk yet and not covered by {@link #snapshot()}, a snapshot keeps them as
+     * pending blocks so they are downloaded again after a crash.
+     */
+    synchronized List<Range> unwrittenBlocks() {
+        final boolean current = !finished && range.size() > 0;
+        final List<Range> blocks = new ArrayList<>();
+        for (Range part : unwritten) {
+            if (!current || part.getStart() < range.getStart() || part.getStart() > range.getEnd()) {
+                blocks.add(part);
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Drop the writes still queued, the file is about to be thrown away.
+     */
+    void abandonWrites() {
+        writer.abandon();
+        synchronized (this) {
+            unwritten.clear();
+        }
+    }
+
+    /**
+     * Request what is left of the current block a second time on another connection. Both responses feed
+     * {@link #receive}, which only keeps bytes beyond what is already written, so the faster one fills the block
+     * and the other is cancelled with it.
+     */
+    void hedge() {
+        synchronized (this) {
+            if (hedging || finished || remaining() <= 0) {
+                return;
+            }
+            hedging = true;
+        }
+        LOG.info("hedge subtask {}", this);
+        hedgeClient.start();
+    }
+
+    void rehedge() {
+        stopHedge();
+        hedge();
+    }
+
+    synchronized boolean isHedging() {
+        return hedging;
+    }
+
+    private void stopHedge() {
+        synchronized (this) {
+            if (!hedging) {
+                return;
+            }
+            hedging = false;
+        }
+        hedgeClient.shutdown();
+    }
+
+    private void hedgeFailed() {
+        LOG.warn("hedged request of subtask {} failed", this);
+        stopHedge();
+    }
+
+    /**
+     * Bytes written since the last call.
+     */
+    synchronized long sampleReceived() {
+        final long sample = receivedBytes - sampledBytes;
+        sampledBytes = receivedBytes;
+        return sample;
+    }
+
+    /**
+     * Whether reading of either connection was held by the {@link ReadGate} since the last call.
+     */
+    boolean sampleHeld() {
+        // both are sampled, so neither keeps an old hold for the next call
+        return client.sampleHeld() | hedgeClient.sampleHeld();
+    }
+
+    public synchronized SubTaskSnapshot snapshot() {
+        // bytes still waiting for the disk are not counted
+        long written = readBytes;
+        for (Range part : unwritten) {
+            if (part.getStart() >= range.getStart() && (range.size() <= 0 || part.getStart() <= range.getEnd())) {
+                written = Math.min(written, part.getStart() - range.getStart());
+            }
+        }
+        return new SubTaskSnapshot(index, range, written);
+    }
+
+    /**
+     * Continue with another block of the file.
+     */
+    synchronized void assign(Range block) {
+        range = block;
+        readBytes = 0;
+        finished = false;
+        blockStartNanos = System.nanoTime();
+    }
+
+    @Override
+    public void redirected(HttpHandler handler) {
+        if (hedgeClient.isCurrent(handler)) {
+            rehedge();
+        } else if (client.isCurrent(handler)) {
+            start();
+        }
+    }
+
+    /**
+     * Fetch the rest of the current block from another mirror, from the next request on.
+     */
+    void moveTo(Mirror mirror) {
+        this.mirror = mirror;
+    }
+
+    Mirror getMirror() {
+        return mirror;
+    }
+
+    /**
+     * Whether a response is fit to fill the current block, a mirror has to serve the same file as the primary url.
+     */
+    boolean acceptResponse(HttpHandler handler, HttpResponse response) {
+        if (!client.isCurrent(handler) && !hedgeClient.isCurrent(handler)) {
+            return false;
+        }
+        if (response.status() != HttpResponseStatus.OK && response.status() != HttpResponseStatus.PARTIAL_CONTENT) {
+            // errors and throttling are handled like on any other url
+            return true;
+        }
+        if (response.status() == HttpResponseStatus.OK && handler.getRequestedRanges() > 1
+                && parent.sameFile(mirror, response)) {
+            parent.multiRangeRefused(mirror);
+            start();
+            return false;
+        }
+        if (!parent.verifyMirror(mirror, response) || !parent.unchanged(mirror, response)) {
+            return false;
+        }
+        if (client.isCurrent(handler)) {
+            responseStarted();
+        }
+        return true;
+    }
+
+    /**
+     * The response to the current request of the main connection has begun.
+     */
+    synchronized void responseStarted() {
+        responding = true;
+        windowStartNanos = System.nanoTime();
+        windowBytes = 0;
+    }
+
+    /**
+     * The value for {@code If-Range} of requests for the current block.
+     */
+    String ifRange() {
+        return parent.ifRange(mirror);
+    }
+
+    /**
+     * The ranges a request of the handler asks for: the rest of the current block, and for the main connection
+     * also the small holes batched with it.
+     */
+    List<Range> requestRanges(HttpHandler handler) {
+        final boolean main = client.isCurrent(handler);
+        if (main) {
+            parent.fillBatch(this);
+        }
+        final List<Range> ranges = new ArrayList<>();
+        synchronized (this) {
+            if (range.size() > 0 && readBytes < range.size()) {
+                ranges.add(new Range(range.getStart() + readBytes, range.getEnd()));
+            }
+            if (main && !ranges.isEmpty()) {
+                ranges.addAll(batch);
+            }
+        }
+        return ranges;
+    }
+
+    void multiRangeRefused() {
+        parent.multiRangeRefused(mirror);
+    }
+
+    synchronized int batchSize() {
+        return batch.size();
+    }
+
+    /**
+     * The last block this worker is to download, the current one if there is no batch.
+     */
+    synchronized Range lastBlock() {
+        return batch.isEmpty() ? range : batch.peekLast();
+    }
+
+    synchronized void addToBatch(Range block) {
+        batch.add(block);
+    }
+
+    private synchronized Range pollBatch() {
+        return batch.poll();
+    }
+
+    /**
+     * Hand back the batched blocks, in order.
+     */
+    synchronized List<Range> takeBatch() {
+        final List<Range> blocks = new ArrayList<>(batch);
+        batch.clear();
+        return blocks;
+    }
+
+    synchronized List<Range> batched() {
+        return new ArrayList<>(batch);
+    }
+
+    synchronized long batchedBytes() {
+        long bytes = 0;
+        for (Range block : batch) {
+            bytes += block.size();
+        }
+        return bytes;
+    }
+
+    /**
+     * Give up the current block.
+     *
+     * @return the part of the block that is not written yet, or null if nothing is left
+     */
+    Range retire() {
+        final Range rest;
+        synchronized (this) {
+            if (finished) {
+                return null;
+            }
+            finished = true;
+            writer.close();
+            rest = range.size() > 0 && readBytes < range.size() ? new Range(range.getStart() + readBytes, range.getEnd()) : null;
+        }
+        client.shutdown();
+        stopHedge();
+        return rest;
+    }
+
+    /**
+     * The server asked to slow down.
+     */
+    void throttled(HttpHandler handler, long delayMillis) {
+        LOG.warn("subtask {} is throttled", this);
+        if (hedgeClient.isCurrent(handler)) {
+            parent.congested();
+            stopHedge();
+        } else {
+            parent.throttled(this, delayMillis);
+        }
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    /**
+     * Bytes of the current block that are not written yet.
+     */
+    synchronized long remaining() {
+        if (finished || range.size() <= 0) {
+            return 0;
+        }
+        return range.size() - readBytes;
+    }
+
+    /**
+     * Give away the second half of what is left of the current block. The request in flight keeps running,
+     * it is cut off once the shortened block is full.
+     *
+     * @return the split off tail, or null if what is left is too small to be worth another request
+     */
+    synchronized Range splitTail(long minSize) {
+        final long remaining = remaining();
+        if (remaining < minSize * 2) {
+            return null;
+        }
+        final long mid = range.getStart() + readBytes + remaining / 2;
+        final Range tail = new Range(mid, range.getEnd());
+        range = new Range(range.getStart(), mid - 1);
+        return tail;
     }
 
     @Override
@@ -101,46 +512,159 @@ public class DownloadSubTask extends HttpTask implements Retryable {
         return readBytes;
     }
 
-    public void receive(ChannelHandlerContext ctx, HttpContent httpContent) throws IOException {
-        if (idleProcess != null && !idleProcess.isDone()) {
-            idleProcess.cancel(false);
+    /**
+     * A part of a {@code multipart/byteranges} response begins. Parts are expected in the order the ranges were
+     * requested, which servers only should keep. A part past the hole the worker waits for makes the worker ask
+     * the mirror for single ranges from then on.
+     */
+    void partStarted(HttpHandler handler, long start) {
+        synchronized (this) {
+            if (finished || !client.isCurrent(handler) || range.size() <= 0 || start <= range.getStart() + readBytes) {
+                return;
+            }
+        }
+        LOG.warn("part from {} is out of order, subtask {}", start, this);
+        parent.multiRangeRefused(mirror);
+        start();
+    }
+
+    /**
+     * @param last whether the content ends the response
+     */
+    public void receive(HttpHandler handler, ByteBuf content, boolean last) throws IOException {
+        if (finished || !(client.isCurrent(handler) || hedgeClient.isCurrent(handler))) {
+            // left over of a response this subtask already moved away from
+            return;
         }
-        final ByteBuffer contentBuffer = httpContent.content().nioBuffer();
-        int remaining = contentBuffer.remaining();
-        int written = 0;
-        synchronized (targetFileChannel) {
-            targetFileChannel.position(range.getStart() + readBytes);
-            do {
-                written += targetFileChannel.write(contentBuffer);
-            } while (written < remaining);
+        final boolean blockFull;
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            final int readable = content.readableBytes();
+            // with a hedged request two responses race, only bytes past the written ones are kept
+            final long skip = range.getStart() + readBytes - handler.getStreamPosition();
+            handler.advance(readable);
+            windowBytes += readable;
+            if (skip < 0 && readable > 0) {
+                throw new IllegalStateException("response is ahead of the written bytes, subtask " + this);
+            }
+            int remaining = (int) Math.max(0, readable - Math.max(0, skip));
+            if (range.size() > 0) {
+                // the response may run past the block, when the probe was adopted or the tail was stolen
+                remaining = (int) Math.max(0, Math.min(remaining, range.size() - readBytes));
+            }
+            final long offset = range.getStart() + readBytes;
+            readBytes += remaining;
+            if (remaining > 0) {
+                final Range part = new Range(offset, offset + remaining - 1);
+                final Range queued = unwritten.peekLast();
+                if (queued != null && queued.getEnd() + 1 == offset && offset != range.getStart()) {
+                    unwritten.pollLast();
+                    unwritten.add(new Range(queued.getStart(), part.getEnd()));
+                } else {
+                    unwritten.add(part);
+                }
+                writer.write(content.slice(content.readerIndex() + (int) skip, remaining), offset, handler.getChannel());
+            }
+            receivedBytes += remaining;
+            blockFull = range.size() > 0 && readBytes >= range.size();
         }
-        readBytes += remaining;
-        parent.reportRead(remaining);
-        if (httpContent instanceof LastHttpContent) {
-            if (range.size() > 0 && range.size() != readBytes) {
+        if (blockFull) {
+            blockFinished(last);
+        } else if (last) {
+            if (range.size() > 0 && handler.getRequestedRanges() > 1) {
+                LOG.warn("response left out ranges, subtask {}", this);
+                parent.multiRangeRefused(mirror);
+                start();
+            } else if (range.size() > 0) {
                 LOG.error("subtask {} read bytes not match range size!", this);
                 failed();
             } else {
                 LOG.info("subtask {}, finished", this);
                 finished();
             }
-        } else {
-            idleProcess = ctx.channel().eventLoop().schedule(this::processIdle, 2, TimeUnit.MINUTES);
         }
     }
 
-    private void processIdle() {
-        LOG.warn("subtask {} is idle, will restart", this);
+    /**
+     * Whether the rest of the response of the handler, {@code length} bytes from {@code position}, may be spliced
+     * into the file: it has to be exactly what is left of the current block, so nothing else reads the body.
+     */
+    synchronized boolean canSplice(HttpHandler handler, long position, long length) {
+        return !finished && !hedging && client.isCurrent(handler) && range.size() > 0
+                && position == range.getStart() + readBytes && position + length - 1 == range.getEnd();
+    }
+
+    SpliceTarget retainSpliceTarget() {
+        return parent.retainSpliceTarget();
+    }
+
+    void spliceOffsetLimitReached(long end) {
+        parent.spliceOffsetLimitReached(end);
+    }
+
+    /**
+     * Bytes of the response went from the socket straight into the file.
+     *
+     * @param last whether they end the response
+     */
+    void spliced(HttpHandler handler, long offset, int length, boolean last) {
+        final long covered;
+        final boolean blockFull;
+        synchronized (this) {
+            if (finished || !client.isCurrent(handler) || offset < range.getStart() || offset > range.getStart() + readBytes) {
+                return;
+            }
+            // a hedged response may have filled part of it already, and the end may have been stolen
+            final long end = Math.min(offset + length, range.getEnd() + 1);
+            covered = Math.max(0, end - range.getStart() - readBytes);
+            readBytes += covered;
+            receivedBytes += covered;
+            windowBytes += length;
+            blockFull = readBytes >= range.size();
+        }
+        parent.reportRead(covered);
+        if (blockFull) {
+            blockFinished(last);
+        }
+    }
+
+    /**
+     * Checked on every tick: a worker whose response delivered less than {@code minBytesPerSecond} on average
+     * over the last {@code windowNanos} requests the rest of its block again on a fresh connection. A slow
+     * connection is no error, so it neither uses up a retry nor counts against the mirror or the connection count.
+     */
+    void checkSpeed(long now, long minBytesPerSecond, long windowNanos, boolean held) {
+        synchronized (this) {
+            // waiting for a connection, for the response headers or for the read gate is not slow reading
+            if (finished || !responding || !client.isActive() || held) {
+                windowStartNanos = now;
+                windowBytes = 0;
+                return;
+            }
+            if (now - windowStartNanos < windowNanos) {
+                return;
+            }
+            final boolean tooSlow = windowBytes * 1_000_000_000L < minBytesPerSecond * (now - windowStartNanos);
+            windowStartNanos = now;
+            windowBytes = 0;
+            if (!tooSlow) {
+                return;
+            }
+        }
+        LOG.warn("subtask {} is slower than {} B/s, will restart", this, minBytesPerSecond);
         restart();
     }
 
     @Override
     public Http getHttp() {
-        return parent.getHttp();
+        return mirror.getHttp();
     }
 
-    public void setTargetFileChannel(SeekableByteChannel targetFileChannel) {
-        this.targetFileChannel = targetFileChannel;
+    @Override
+    public TokenBucket getBandwidth() {
+        return parent.getBandwidth();
     }
 
     @Override
@@ -160,12 +684,11 @@ public class DownloadSubTask extends HttpTask implements Retryable {
         return "DownloadSubTask{" +
                 "parent=" + parent.id() +
                 ", range=" + range +
-                ", targetFileChannel=" + targetFileChannel +
                 ", finished=" + finished +
                 ", index=" + index +
-                ", idleProcess=" + idleProcess +
                 ", readBytes=" + readBytes +
                 ", retry=" + retry +
+                ", hedging=" + hedging +
                 '}';
     }
 }
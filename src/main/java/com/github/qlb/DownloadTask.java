@@ -1,62 +1,715 @@
 package com.github.qlb;
 
+import com.google.common.io.ByteStreams;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileStore;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 public class DownloadTask extends HttpTask implements SnapshottingTask {
     private static final Logger LOG = LoggerFactory.getLogger(DownloadTask.class);
+    private static final long DEFAULT_BLOCK_SIZE_KB = 4096;
+    private static final long MIN_STEAL_SIZE = 256 * 1024;
+    private static final long ENDGAME_SIZE = 4 * 1024 * 1024;
+    private static final int STRAGGLER_FACTOR = 4;
+    private static final int MIRROR_MAX_FAILURES = 3;
+    private static final int MAX_PROBE_RETRIES = 3;
+    private static final long MULTI_RANGE_MAX_HOLE = 1024 * 1024;
+    private static final int MIRROR_SLOW_FACTOR = 4;
+    private static final int MIRROR_SLOW_TICKS = 5;
+    private static final boolean LINUX = System.getProperty("os.name", "").toLowerCase().startsWith("linux");
+    private static final int FILL_SIZE = 1024 * 1024;
     private static final String DEFAULT_DIR = Optional.ofNullable(System.getenv("HOME"))
             .orElse(System.getenv("HOMEPATH"));
     private final String id;
     private State state;
     private final Http http;
+    private final List<Mirror> mirrors = new ArrayList<>();
     private final String targetDirectory;
-    private final List<DownloadSubTask> subTasks = new ArrayList<>();
+    private final List<DownloadSubTask> subTasks = new CopyOnWriteArrayList<>();
+    private final Deque<Range> pendingBlocks = new ArrayDeque<>();
+    private final Set<Range> holes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final TokenBucket bandwidth = new TokenBucket();
+    private final long blockSize;
     private long totalSize = UNKNOWN_TOTAL_SIZE;
     private SeekableByteChannel tmpFile;
+    private SpliceTarget spliceTarget;
+    private boolean spliceUnavailable;
+    private boolean spliceOffsetLimitTold;
+    private long unsyncedBytes;
+    private volatile int priority;
+    private String fileName;
+    private Checksum checksum;
+    private DownloadSubTask probeAdopter;
+    private boolean probeContinued;
+    /**
+     * The allocation of the file that runs on a disk thread, the workers start once it is done.
+     */
+    private Object allocation;
+    private boolean singleStream;
+    private boolean probeOnReady;
+    private int probeRetries;
+    private ConnectionController controller;
 
-    public DownloadTask(CommandLine cli) {
-        this(cli.getOptionValue(DownloadOptions.URL),
-                cli.getOptionValue(DownloadOptions.HOME_DIR, DEFAULT_DIR) + File.separator + "jget" + File.separator + "download");
+    public DownloadTask(CommandLine cli) throws ParseException {
+        this(Arrays.asList(cli.getOptionValues(DownloadOptions.URL)), cli);
+        this.priority = priority(cli);
+    }
+
+    /**
+     * A task of the urls saved into the directory of the command line.
+     */
+    DownloadTask(List<String> urls, CommandLine cli) throws ParseException {
+        this(urls, downloadDirectory(cli), blockSize(cli));
+    }
+
+    static long blockSize(CommandLine cli) throws ParseException {
+        return DownloadOptions.longValue(cli, DownloadOptions.BLOCK_SIZE, 1, Long.MAX_VALUE / 1024, DEFAULT_BLOCK_SIZE_KB) * 1024;
+    }
+
+    static int priority(CommandLine cli) throws ParseException {
+        return (int) DownloadOptions.longValue(cli, DownloadOptions.PRIORITY, Integer.MIN_VALUE, Integer.MAX_VALUE, 0);
+    }
+
+    static String downloadDirectory(CommandLine cli) {
+        return cli.getOptionValue(DownloadOptions.HOME_DIR, DEFAULT_DIR) + File.separator + "jget" + File.separator + "download";
     }
 
     public DownloadTask(String url, String targetDirectory) {
+        this(Collections.singletonList(url), targetDirectory, DEFAULT_BLOCK_SIZE_KB * 1024);
+    }
+
+    /**
+     * @param urls the url to download and mirrors serving the same file
+     */
+    public DownloadTask(List<String> urls, String targetDirectory, long blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("block size should > 0");
+        }
         this.id = UUID.randomUUID().toString();
-        this.http = new Http(url);
+        for (String url : urls) {
+            mirrors.add(new Mirror(url));
+        }
+        this.http = mirrors.get(0).getHttp();
         this.targetDirectory = targetDirectory;
         this.state = State.created;
+        this.blockSize = blockSize;
     }
 
-    private DownloadTask(String id, String url, String targetDirectory, LocalDateTime createTime) {
+    private DownloadTask(String id, List<Mirror> mirrors, String targetDirectory, LocalDateTime createTime,
+                         long blockSize) {
         this.id = id;
-        this.http = new Http(url);
+        this.mirrors.addAll(mirrors);
+        this.http = mirrors.get(0).getHttp();
         this.targetDirectory = targetDirectory;
         this.state = State.created;
         this.createTime = createTime;
+        this.blockSize = blockSize;
     }
 
     public static DownloadTask recoverFromSnapshot(@Nonnull TaskSnapshot snapshot) {
-        DownloadTask task = new DownloadTask(snapshot.getTaskId(), snapshot.getUrl(), snapshot.getFileDirectory(), snapshot.getCreateTime());
+        final List<Mirror> mirrors = new ArrayList<>();
+        if (snapshot.getMirrors() == null || snapshot.getMirrors().isEmpty()) {
+            mirrors.add(new Mirror(snapshot.getUrl()));
+        } else {
+            for (MirrorSnapshot mirror : snapshot.getMirrors()) {
+                mirrors.add(Mirror.recover(mirror));
+            }
+        }
+        mirrors.get(0).getHttp().restoreRedirect(snapshot.getEffectiveUrl(), snapshot.getEffectiveUrlExpireTime());
+        mirrors.get(0).validators(snapshot.getEtag(), snapshot.getLastModified());
+        // pending blocks are cut at the size the task queued them with
+        final long blockSize = snapshot.getBlockSize() > 0 ? snapshot.getBlockSize() : DEFAULT_BLOCK_SIZE_KB * 1024;
+        DownloadTask task = new DownloadTask(snapshot.getTaskId(), mirrors, snapshot.getFileDirectory(),
+                snapshot.getCreateTime(), blockSize);
+        final boolean knownSize = snapshot.getTotalSize() > 0 && !snapshot.isSingleStream();
         for (SubTaskSnapshot subtask : snapshot.getSubtasks()) {
-            task.addSubTask(subtask.recover(task));
+            final DownloadSubTask recovered = subtask.recover(task);
+            task.addSubTask(recovered);
+            if (knownSize) {
+                // the hole a worker left is queued like any block, so small holes can share a request
+                final Range rest = recovered.retire();
+                if (rest != null) {
+                    task.pendingBlocks.add(rest);
+                    task.holes.add(rest);
+                }
+            }
+        }
+        if (snapshot.getTotalSize() > 0) {
+            task.totalSize = snapshot.getTotalSize();
+        }
+        if (snapshot.getPendingBlocks() != null) {
+            for (Range range : snapshot.getPendingBlocks()) {
+                // adjacent blocks are stored as one range
+                for (long start = range.getStart(); start <= range.getEnd(); start += task.blockSize) {
+                    task.pendingBlocks.add(new Range(start, Math.min(start + task.blockSize - 1, range.getEnd())));
+                }
+            }
         }
+        task.singleStream = snapshot.isSingleStream();
+        task.priority = snapshot.getPriority();
+        task.fileName = snapshot.getTargetName();
+        if (snapshot.getChecksum() != null) {
+            task.checksum = Checksum.parse(snapshot.getChecksum());
+        }
+        // saved after the file changed and before the url was probed again
+        task.probeOnReady = task.subTasks.isEmpty() && task.pendingBlocks.isEmpty() && task.totalSize == UNKNOWN_TOTAL_SIZE;
         return task;
     }
 
+    /**
+     * Cut the file into blocks and hand the first ones to the workers, the rest are queued.
+     * Blocks are never larger than an even share of the most connections allowed,
+     * so that small files still use every connection.
+     *
+     * @return the worker of the first block
+     */
+    DownloadSubTask allocateBlocks(long totalLen) {
+        final int workers = TaskManager.INSTANCE.getMaxConnections();
+        final long size = Math.max(1, Math.min(blockSize, (totalLen + workers - 1) / workers));
+        synchronized (this) {
+            for (long start = 0; start < totalLen; start += size) {
+                pendingBlocks.add(new Range(start, Math.min(start + size, totalLen) - 1));
+            }
+        }
+        final int numWorkers = Math.min(controller().target(), pendingBlocks.size());
+        for (int i = 0; i < numWorkers; i++) {
+            final Range block = pendingBlocks.poll();
+            final DownloadSubTask subTask = new DownloadSubTask(this, i, block);
+            if (i == 0) {
+                // the first block continues the probe response, which comes from the primary url
+                synchronized (this) {
+                    primaryMirror().assigned(block.size());
+                }
+            } else {
+                subTask.moveTo(mirrorFor(block));
+            }
+            subTask.ready();
+        }
+        totalSize = totalLen;
+        LOG.info("split {} bytes into {} blocks of {} bytes for {} workers, task {}",
+                totalLen, pendingBlocks.size() + numWorkers, size, numWorkers, id);
+        return subTasks.get(0);
+    }
+
+    /**
+     * A single worker for the whole body, for servers that do not serve ranges.
+     * When the size is unknown it reads until the end of the body.
+     */
+    DownloadSubTask allocateWhole(long totalLen) {
+        final DownloadSubTask subTask = new DownloadSubTask(this, 0, new Range(0, totalLen - 1));
+        subTask.ready();
+        singleStream = true;
+        return subTask;
+    }
+
+    Mirror primaryMirror() {
+        return mirrors.get(0);
+    }
+
+    /**
+     * Pick the mirror for a block so that every mirror is given bytes in proportion to the throughput
+     * one connection gets from it. Mirrors not measured yet count as average.
+     */
+    synchronized Mirror mirrorFor(Range block) {
+        double measured = 0;
+        int numMeasured = 0;
+        for (Mirror mirror : mirrors) {
+            if (!mirror.isDropped() && mirror.getRate() > 0) {
+                measured += mirror.getRate();
+                numMeasured++;
+            }
+        }
+        final double average = numMeasured == 0 ? 1 : measured / numMeasured;
+        final long size = Math.max(0, block.size());
+        Mirror best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Mirror mirror : mirrors) {
+            if (mirror.isDropped()) {
+                continue;
+            }
+            final double score = (mirror.getAssignedBytes() + size) / (mirror.getRate() > 0 ? mirror.getRate() : average);
+            if (score < bestScore) {
+                best = mirror;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            best = primaryMirror();
+        }
+        best.assigned(size);
+        return best;
+    }
+
+    /**
+     * A mirror is used once its first response agrees with the primary url on the size and on the validators
+     * both of them send. Otherwise it is dropped and its workers move to other mirrors.
+     */
+    synchronized boolean verifyMirror(Mirror mirror, HttpResponse response) {
+        if (mirror == primaryMirror() || mirror.isVerified()) {
+            return true;
+        }
+        final HttpHeaders headers = response.headers();
+        final Mirror primary = primaryMirror();
+        final boolean agrees = response.status() == HttpResponseStatus.PARTIAL_CONTENT
+                && HttpHandler.contentRangeTotal(headers) == totalSize
+                && sameValidator(primary.getLastModified(), headers.get(HttpHeaderNames.LAST_MODIFIED))
+                && sameValidator(strongEtag(primary.getEtag()), strongEtag(headers.get(HttpHeaderNames.ETAG)));
+        if (agrees) {
+            mirror.verified();
+            mirror.validators(headers);
+            return true;
+        }
+        LOG.warn("mirror {} does not serve the same file, task {}", mirror, id);
+        dropMirror(mirror, null, true);
+        return false;
+    }
+
+    private static boolean sameValidator(String expected, String actual) {
+        return expected == null || actual == null || expected.equals(actual);
+    }
+
+    private static String strongEtag(String etag) {
+        return etag == null || etag.startsWith("W/") ? null : etag;
+    }
+
+    /**
+     * Remember the validators the probe response came with, later range requests are sent with {@code If-Range}.
+     */
+    synchronized String ifRange(Mirror mirror) {
+        return mirror.ifRange();
+    }
+
+    synchronized void probed(HttpHeaders headers) {
+        primaryMirror().validators(headers);
+    }
+
+    /**
+     * Check a range response against the validators of its mirror. If the file of the primary url changed,
+     * nothing written so far can be trusted and the task starts over. A changed mirror is dropped.
+     */
+    synchronized boolean unchanged(Mirror mirror, HttpResponse response) {
+        if (!mirror.changed(response)) {
+            return true;
+        }
+        if (mirror != primaryMirror()) {
+            LOG.warn("file on mirror {} changed, task {}", mirror, id);
+            dropMirror(mirror, null, true);
+            return false;
+        }
+        LOG.warn("remote file changed, task {} starts over", id);
+        startOver();
+        return false;
+    }
+
+    /**
+     * Throw away all state about the old file and probe the url again.
+     */
+    private void startOver() {
+        for (DownloadSubTask subTask : subTasks) {
+            subTask.retire();
+            subTask.abandonWrites();
+        }
+        subTasks.clear();
+        pendingBlocks.clear();
+        holes.clear();
+        probeAdopter = null;
+        probeContinued = false;
+        allocation = null;
+        singleStream = false;
+        controller = null;
+        totalSize = UNKNOWN_TOTAL_SIZE;
+        for (Mirror mirror : mirrors) {
+            mirror.reset();
+        }
+        http.setResponseHeaders(null);
+        releaseSpliceTarget();
+        try {
+            if (tmpFile != null) {
+                tmpFile.close();
+                tmpFile = null;
+            }
+            Files.deleteIfExists(tmpFilePath());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        state = State.created;
+        client.start();
+    }
+
+    /**
+     * A block completed, which tells the rate of one connection to the mirror well before a tick averaged it.
+     */
+    synchronized void mirrorSucceeded(Mirror mirror, long bytes, long nanos) {
+        mirror.succeeded();
+        if (mirrors.size() > 1 && bytes > 0 && nanos > 0) {
+            mirror.sample((long) (bytes * 1e9 / nanos));
+        }
+    }
+
+    synchronized void mirrorFailed(DownloadSubTask worker) {
+        final Mirror mirror = worker.getMirror();
+        if (mirrors.size() > 1 && mirror.failed() >= MIRROR_MAX_FAILURES) {
+            LOG.warn("mirror {} keeps failing, task {}", mirror, id);
+            dropMirror(mirror, worker, false);
+        }
+    }
+
+    /**
+     * Stop using a mirror and move its workers to the others. The last mirror is only dropped when forced,
+     * which fails the task.
+     *
+     * @param current a worker that restarts by itself, null if there is none
+     */
+    private void dropMirror(Mirror mirror, DownloadSubTask current, boolean force) {
+        if (mirror.isDropped()) {
+            return;
+        }
+        int healthy = 0;
+        for (Mirror m : mirrors) {
+            if (!m.isDropped()) {
+                healthy++;
+            }
+        }
+        if (healthy <= 1 && !force) {
+            return;
+        }
+        LOG.warn("drop mirror {}, task {}", mirror, id);
+        mirror.dropped();
+        if (healthy <= 1) {
+            TransportRuntime.INSTANCE.group().execute(this::failed);
+            return;
+        }
+        for (DownloadSubTask subTask : subTasks) {
+            if (!subTask.isFinished() && subTask.getMirror() == mirror) {
+                subTask.moveTo(mirrorFor(subTask.getRange()));
+                if (subTask != current) {
+                    subTask.restart();
+                }
+            }
+        }
+    }
+
+    /**
+     * Feed the rates of the last tick to the mirrors and drop the ones a connection crawls on
+     * compared to the best mirror.
+     */
+    private synchronized void measureMirrors(Map<DownloadSubTask, Long> rates) {
+        if (mirrors.size() <= 1) {
+            return;
+        }
+        double best = 0;
+        for (Mirror mirror : mirrors) {
+            if (mirror.isDropped()) {
+                continue;
+            }
+            long bytes = 0;
+            int connections = 0;
+            for (Map.Entry<DownloadSubTask, Long> rate : rates.entrySet()) {
+                if (rate.getKey().getMirror() == mirror) {
+                    bytes += rate.getValue();
+                    connections += rate.getKey().isFinished() ? 0 : 1;
+                }
+            }
+            if (connections > 0) {
+                mirror.sample(bytes / connections);
+            }
+            best = Math.max(best, mirror.getRate());
+        }
+        for (Mirror mirror : mirrors) {
+            if (!mirror.isDropped() && mirror.slow(mirror.getRate() < best / MIRROR_SLOW_FACTOR) >= MIRROR_SLOW_TICKS) {
+                LOG.warn("mirror {} is too slow, task {}", mirror, id);
+                dropMirror(mirror, null, false);
+            }
+        }
+    }
+
+    private synchronized ConnectionController controller() {
+        if (controller == null) {
+            controller = new ConnectionController(TaskManager.INSTANCE.getMinConnections(),
+                    TaskManager.INSTANCE.getMaxConnections());
+        }
+        return controller;
+    }
+
+    /**
+     * Restart workers below the speed floor, then let the connection controller resize the set of workers
+     * to the throughput measured since the last tick.
+     */
+    @Override
+    public void tick() {
+        if (state != State.started) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long speedWindow = TimeUnit.SECONDS.toNanos(TaskManager.INSTANCE.getSpeedTime());
+        // a worker held back by the rate limit or the memory budget is not slow, it is neither restarted nor hedged
+        final Set<DownloadSubTask> held = new HashSet<>();
+        for (DownloadSubTask subTask : subTasks) {
+            if (subTask.sampleHeld()) {
+                held.add(subTask);
+            }
+        }
+        for (DownloadSubTask subTask : subTasks) {
+            subTask.checkSpeed(now, TaskManager.INSTANCE.getSpeedLimit(), speedWindow, held.contains(subTask));
+        }
+        if (singleStream) {
+            return;
+        }
+        final Map<DownloadSubTask, Long> rates = new LinkedHashMap<>();
+        for (DownloadSubTask subTask : subTasks) {
+            rates.put(subTask, subTask.sampleReceived());
+        }
+        measureMirrors(rates);
+        adjustWorkers(controller().tick(getReadBytes(), System.nanoTime(), TaskManager.INSTANCE.connectionShare()));
+        rates.keySet().removeAll(held);
+        hedgeStragglers(rates);
+    }
+
+    /**
+     * End game: workers are hedged when the whole task is nearly done, or when a worker crawls at a fraction
+     * of the median rate with too little left to be worth stealing.
+     */
+    private synchronized void hedgeStragglers(Map<DownloadSubTask, Long> workerRates) {
+        final List<DownloadSubTask> active = new ArrayList<>();
+        final List<Long> rates = new ArrayList<>();
+        for (Map.Entry<DownloadSubTask, Long> rate : workerRates.entrySet()) {
+            if (!rate.getKey().isFinished()) {
+                active.add(rate.getKey());
+                rates.add(rate.getValue());
+            }
+        }
+        if (active.isEmpty()) {
+            return;
+        }
+        final boolean endGame = getTotalBytes() - getReadBytes() < ENDGAME_SIZE;
+        final List<Long> sorted = new ArrayList<>(rates);
+        Collections.sort(sorted);
+        final long median = sorted.get(sorted.size() / 2);
+        for (int i = 0; i < active.size(); i++) {
+            final DownloadSubTask subTask = active.get(i);
+            if (subTask.isHedging()) {
+                if (rates.get(i) == 0) {
+                    // both responses are stuck, race a new one against them
+                    subTask.rehedge();
+                }
+                continue;
+            }
+            final boolean straggling = rates.get(i) < median / STRAGGLER_FACTOR && subTask.remaining() < MIN_STEAL_SIZE * 2;
+            if (endGame || straggling) {
+                subTask.hedge();
+            }
+        }
+    }
+
+    private synchronized void adjustWorkers(int target) {
+        if (state != State.started && state != State.ready) {
+            return;
+        }
+        int active = activeWorkers();
+        while (active < target) {
+            final Range block = nextBlock(null);
+            if (block == null) {
+                break;
+            }
+            DownloadSubTask worker = null;
+            for (DownloadSubTask subTask : subTasks) {
+                if (subTask.isFinished()) {
+                    worker = subTask;
+                    break;
+                }
+            }
+            if (worker == null) {
+                int index = 0;
+                for (DownloadSubTask subTask : subTasks) {
+                    index = Math.max(index, subTask.getIndex() + 1);
+                }
+                worker = new DownloadSubTask(this, index, block);
+                subTasks.add(worker);
+            } else {
+                worker.assign(block);
+            }
+            worker.moveTo(mirrorFor(block));
+            // batch right away, before the next workers take the holes one by one
+            fillBatch(worker);
+            worker.start();
+            active++;
+        }
+        while (active > target) {
+            DownloadSubTask victim = null;
+            for (DownloadSubTask subTask : subTasks) {
+                if (!subTask.isFinished() && (victim == null || subTask.remaining() > victim.remaining())) {
+                    victim = subTask;
+                }
+            }
+            retire(victim);
+            active--;
+        }
+    }
+
+    private int activeWorkers() {
+        int active = 0;
+        for (DownloadSubTask subTask : subTasks) {
+            if (!subTask.isFinished()) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    /**
+     * Stop a worker and put what is left of its block back at the head of the queue.
+     */
+    private void retire(DownloadSubTask worker) {
+        final Range rest = worker.retire();
+        LOG.info("retire subtask {}, return {} to the queue", worker, rest);
+        requeue(worker.takeBatch());
+        if (rest != null) {
+            pendingBlocks.addFirst(rest);
+            holes.add(rest);
+        }
+    }
+
+    private void requeue(List<Range> blocks) {
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            pendingBlocks.addFirst(blocks.get(i));
+            holes.add(blocks.get(i));
+        }
+    }
+
+    /**
+     * Before a worker sends a request for a small range, batch the small holes at the head of the queue with it,
+     * so they come in one {@code multipart/byteranges} response. Holes are what is left of blocks a worker gave up,
+     * on resume or when retired. Regular blocks are left to parallel connections, which serve them better.
+     */
+    synchronized void fillBatch(DownloadSubTask worker) {
+        final int maxRanges = TaskManager.INSTANCE.getMaxRanges();
+        if (maxRanges <= 1 || !worker.getMirror().isMultiRange()) {
+            requeue(worker.takeBatch());
+            return;
+        }
+        if (worker.remaining() > MULTI_RANGE_MAX_HOLE) {
+            return;
+        }
+        Range last = worker.lastBlock();
+        while (worker.batchSize() + 1 < maxRanges) {
+            final Range next = pendingBlocks.peek();
+            if (next == null || !holes.contains(next) || next.size() > MULTI_RANGE_MAX_HOLE
+                    || next.getStart() == last.getEnd() + 1) {
+                return;
+            }
+            holes.remove(next);
+            worker.addToBatch(pendingBlocks.poll());
+            last = next;
+        }
+    }
+
+    synchronized boolean sameFile(Mirror mirror, HttpResponse response) {
+        return mirror.sameValidators(response.headers());
+    }
+
+    synchronized void multiRangeRefused(Mirror mirror) {
+        if (mirror.isMultiRange()) {
+            LOG.warn("mirror {} does not serve multiple ranges in one response, task {}", mirror, id);
+            mirror.multiRangeRefused();
+        }
+    }
+
+    /**
+     * The server answered a worker with 429 or 503. Besides halving the connections at the next tick,
+     * the worker is retired at once, or when it is the last one it tries again after the delay.
+     */
+    void throttled(DownloadSubTask worker, long delayMillis) {
+        controller().congested();
+        synchronized (this) {
+            if (activeWorkers() > 1) {
+                retire(worker);
+                return;
+            }
+        }
+        worker.stop();
+        TransportRuntime.INSTANCE.group().schedule(worker::restart, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The probe was throttled, which is likely after starting over while the old connections are still
+     * counted by the server. It is sent again after the delay a few times before the task fails.
+     */
+    void probeThrottled(long delayMillis) {
+        if (++probeRetries > MAX_PROBE_RETRIES) {
+            failed();
+            return;
+        }
+        LOG.warn("probe of task {} is throttled, retry in {} ms", id, delayMillis);
+        TransportRuntime.INSTANCE.group().schedule(this::start, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void congested() {
+        controller().congested();
+    }
+
+    /**
+     * The next block for a worker that is done with its current one. When the queue is drained the worker
+     * steals the tail of the block with the most bytes left, so a slow connection only holds back a small part.
+     */
+    synchronized Range nextBlock(DownloadSubTask worker) {
+        if (allocation != null) {
+            // the probe worker is done with its block, the others are written over while the file is allocated
+            return null;
+        }
+        final Range block = pendingBlocks.poll();
+        if (block != null) {
+            return block;
+        }
+        DownloadSubTask victim = null;
+        for (DownloadSubTask subTask : subTasks) {
+            if (subTask != worker && (victim == null || subTask.remaining() > victim.remaining())) {
+                victim = subTask;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        final Range tail = victim.splitTail(MIN_STEAL_SIZE);
+        if (tail != null) {
+            LOG.info("subtask {} steals {} from {}", worker, tail, victim);
+        }
+        return tail;
+    }
+
     @Override
     public String id() {
         return id;
@@ -70,19 +723,68 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
         finished
     }
 
-    public void subTaskFinished() {
+    public synchronized void subTaskFinished() {
+        if (state == State.finished || !pendingBlocks.isEmpty()) {
+            return;
+        }
         for (DownloadSubTask subTask : subTasks) {
-            if (!subTask.isFinished()) {
+            // the file is complete once the last write is done
+            if (!subTask.isFinished() || subTask.isWriting()) {
                 return;
             }
         }
         finished();
     }
 
+    private boolean verifyChecksum() {
+        try {
+            if (checksum.matches(tmpFilePath())) {
+                return true;
+            }
+            LOG.error("{} does not match checksum {}, task {}", targetFileName(), checksum, id);
+        } catch (IOException e) {
+            LOG.error("can not verify the checksum of task {}", id, e);
+        }
+        return false;
+    }
+
+    /**
+     * Whether the file already at the target name matches the checksum.
+     */
+    boolean verifyTarget() {
+        final Path target = new File(targetFileDirectory(), targetFileName()).toPath();
+        try {
+            if (checksum.matches(target)) {
+                return true;
+            }
+            LOG.warn("{} exists but does not match checksum {}, download it again", target, checksum);
+        } catch (IOException e) {
+            LOG.warn("can not verify the checksum of {}, download it again", target, e);
+        }
+        return false;
+    }
+
+    private void closeTempFile() {
+        releaseSpliceTarget();
+        try {
+            if (tmpFile != null) {
+                tmpFile.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void renameTempFiles() {
+        closeTempFile();
         try {
-            tmpFile.close();
-            Files.move(tmpFilePath(), new File(targetFileDirectory(), targetFileName()).toPath());
+            final Path target = new File(targetFileDirectory(), targetFileName()).toPath();
+            if (checksum != null) {
+                // the content is verified, it replaces a file that did not match
+                Files.move(tmpFilePath(), target, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.move(tmpFilePath(), target);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -93,6 +795,7 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
             subTasks.add(subTask);
             final long size = subTask.getRange().size();
             if (size > 0) {
+                // snapshots written before the block queue do not keep pending blocks
                 totalSize += size;
             }
         } else {
@@ -110,20 +813,78 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
         return http;
     }
 
-    public void startSubTasks() {
+    @Override
+    public TokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    /**
+     * Save as the given name instead of the one the url or the response suggests.
+     */
+    void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    /**
+     * The file has to match the checksum before it is moved to its name, where it replaces a file that is there.
+     */
+    void setChecksum(Checksum checksum) {
+        this.checksum = checksum;
+    }
+
+    Checksum getChecksum() {
+        return checksum;
+    }
+
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * Let the subtask continue the response of the probe request instead of requesting its range again.
+     */
+    void adoptProbe(DownloadSubTask subTask) {
+        probeAdopter = subTask;
+    }
+
+    /**
+     * Hands the probe response over to the worker of the first block, once.
+     */
+    private synchronized void continueProbe() {
+        if (probeAdopter != null && !probeContinued) {
+            probeContinued = true;
+            client.handOver(probeAdopter.client);
+            probeAdopter.responseStarted();
+        }
+    }
+
+    public synchronized void startSubTasks() {
         if (state == State.started || state == State.finished) {
             return;
         }
-        boolean allSubtasksFinished = true;
+        continueProbe();
         for (DownloadSubTask subTask : subTasks) {
-            if (!subTask.isFinished()) {
-                allSubtasksFinished = false;
-                subTask.setTargetFileChannel(tmpFile);
+            if (!subTask.isFinished() && subTask != probeAdopter) {
+                if (!singleStream) {
+                    subTask.moveTo(mirrorFor(subTask.getRange()));
+                }
                 subTask.start();
             }
         }
+        probeAdopter = null;
+        probeContinued = false;
         disconnect();
-        if (allSubtasksFinished) {
+        if (!singleStream) {
+            // resumed tasks may have fewer unfinished workers than blocks left
+            adjustWorkers(Math.max(controller().target(), activeWorkers()));
+        }
+        if (activeWorkers() == 0) {
             finished();
         } else {
             state = State.started;
@@ -132,16 +893,30 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
         }
     }
 
-    public void discarded() {
-        disconnect();
-    }
-
     public void disconnect() {
         this.client.shutdown();
     }
 
     @Override
     public void finished() {
+        if (checksum == null) {
+            complete();
+            return;
+        }
+        // every write is done, the descriptors are not needed while the file is read
+        closeTempFile();
+        TaskManager.INSTANCE.verifyChecksum(() -> {
+            if (verifyChecksum()) {
+                complete();
+                return;
+            }
+            // a later run downloads the file again from scratch
+            state = State.failed;
+            TaskManager.INSTANCE.remove(this);
+        });
+    }
+
+    private void complete() {
         renameTempFiles();
         state = State.finished;
         TaskManager.INSTANCE.remove(this);
@@ -152,6 +927,7 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
         LOG.error("task {} failed", this);
         stop();
         disconnect();
+        releaseSpliceTarget();
         if (tmpFile != null && tmpFile.isOpen()) {
             try {
                 tmpFile.close();
@@ -165,15 +941,147 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
 
     @Override
     public void ready() {
+        if (probeOnReady) {
+            probeOnReady = false;
+            start();
+            return;
+        }
+        final boolean created;
+        final long size;
         try {
+            created = !Files.exists(tmpFilePath());
             tmpFile = createTempFile();
+            size = tmpFile.size();
+        } catch (IOException e) {
+            LOG.error("can not create the file of task {}, {}", id, e.getMessage());
+            failed();
+            return;
+        }
+        if (totalSize <= 0 || size >= totalSize) {
             state = State.ready;
             startSubTasks();
+            return;
+        }
+        // the probe response keeps streaming into its own block, the other workers wait for the allocation
+        continueProbe();
+        final Object allocation = new Object();
+        synchronized (this) {
+            this.allocation = allocation;
+        }
+        DiskWriter.INSTANCE.execute(() -> allocate(allocation, size, created));
+    }
+
+    /**
+     * Allocate the whole file on a disk thread once its size is known, so workers writing at scattered offsets do
+     * not extend and fragment it piece by piece, and a download that can not fit fails before its workers start.
+     */
+    private void allocate(Object allocation, long from, boolean created) {
+        final Path file = tmpFilePath();
+        final long length = totalSize;
+        try {
+            final FileStore store = DiskWriter.INSTANCE.claim(file, length - from);
+            try {
+                if (!fallocate(file, length)) {
+                    fill(file, from, length, store);
+                }
+            } finally {
+                DiskWriter.INSTANCE.unclaim(store, length - from);
+            }
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            LOG.error("can not allocate the file of task {}, {}", id, e.getMessage());
+            synchronized (this) {
+                if (this.allocation != allocation) {
+                    return;
+                }
+                this.allocation = null;
+            }
+            failed();
+            if (created) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException deleteFailed) {
+                    LOG.warn("can not delete {}", file, deleteFailed);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            // started over or failed meanwhile
+            if (this.allocation != allocation || state != State.created) {
+                return;
+            }
+            this.allocation = null;
+            state = State.ready;
+            startSubTasks();
         }
     }
 
+    /**
+     * Java has no fallocate, the util-linux command makes the call. It keeps what the probe worker already wrote.
+     *
+     * @return false if the command or the file system does not support it
+     */
+    private boolean fallocate(Path file, long length) throws IOException {
+        if (!LINUX) {
+            return false;
+        }
+        final String output;
+        final int exitCode;
+        try {
+            final Process process = new ProcessBuilder("fallocate", "-l", String.valueOf(length), file.toString())
+                    .redirectErrorStream(true)
+                    .start();
+            output = new String(ByteStreams.toByteArray(process.getInputStream())).trim();
+            exitCode = process.waitFor();
+        } catch (IOException e) {
+            LOG.info("fallocate is not available, {}", e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (exitCode == 0) {
+            LOG.info("allocated {} bytes for {}", length, file);
+            return true;
+        }
+        if (output.contains("No space left")) {
+            throw new IOException("not enough space for " + file + ", " + output);
+        }
+        LOG.info("can not fallocate {}, {}", file, output);
+        return false;
+    }
+
+    /**
+     * Allocate by writing zeros, around the block the probe worker writes meanwhile.
+     */
+    private void fill(Path file, long from, long length, FileStore store) throws IOException {
+        final Range probed;
+        synchronized (this) {
+            probed = probeAdopter != null ? probeAdopter.getRange() : null;
+        }
+        final ByteBuffer zeros = ByteBuffer.allocateDirect(FILL_SIZE);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            long position = from;
+            while (position < length) {
+                if (probed != null && position >= probed.getStart() && position <= probed.getEnd()) {
+                    position = probed.getEnd() + 1;
+                    continue;
+                }
+                long end = Math.min(position + FILL_SIZE, length);
+                if (probed != null && position < probed.getStart()) {
+                    end = Math.min(end, probed.getStart());
+                }
+                zeros.clear().limit((int) (end - position));
+                while (zeros.hasRemaining()) {
+                    channel.write(zeros, position + zeros.position());
+                }
+                DiskWriter.INSTANCE.unclaim(store, end - position);
+                position = end;
+            }
+        }
+        LOG.info("allocated {} bytes for {} by writing zeros", length - from, file);
+    }
+
     @Override
     public void deleted() {
         try {
@@ -212,7 +1120,7 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
 
     @Override
     public String targetFileName() {
-        return http.getFileName();
+        return fileName != null ? fileName : http.getFileName();
     }
 
     @Override
@@ -224,16 +1132,48 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
     }
 
     public synchronized void reportRead(long readBytes) {
-        //totalRead += readBytes;
+        unsyncedBytes += readBytes;
     }
 
     @Override
-    public long getReadBytes() {
-        long totalRead = 0L;
+    public void sync() throws IOException {
+        synchronized (this) {
+            if (unsyncedBytes == 0) {
+                return;
+            }
+            unsyncedBytes = 0;
+        }
+        // flushes what every writer of the file left in the page cache, mapped windows and splices included
+        try (FileChannel channel = FileChannel.open(tmpFilePath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        } catch (NoSuchFileException e) {
+            LOG.debug("temp file of task {} is gone, nothing to sync", id);
+        } catch (IOException e) {
+            synchronized (this) {
+                // still dirty, the next cycle tries again
+                unsyncedBytes++;
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public synchronized long getReadBytes() {
+        if (totalSize == UNKNOWN_TOTAL_SIZE) {
+            long totalRead = 0L;
+            for (DownloadSubTask subTask : subTasks) {
+                totalRead += subTask.getReadBytes() - subTask.unwrittenBytes();
+            }
+            return totalRead;
+        }
+        long remaining = 0L;
+        for (Range block : pendingBlocks) {
+            remaining += block.size();
+        }
         for (DownloadSubTask subTask : subTasks) {
-            totalRead += subTask.getReadBytes();
+            remaining += subTask.remaining() + subTask.batchedBytes() + subTask.unwrittenBytes();
         }
-        return totalRead;
+        return totalSize - remaining;
     }
 
     @Override
@@ -242,16 +1182,100 @@ public class DownloadTask extends HttpTask implements SnapshottingTask {
     }
 
     @Override
-    public TaskSnapshot snapshot() {
+    public synchronized TaskSnapshot snapshot() {
         final TaskSnapshot taskSnapshot = new TaskSnapshot(id, getHttp().getUrl(), totalSize,
-                targetFileDirectory(), http.getFileName(), createTime);
+                targetFileDirectory(), targetFileName(), createTime);
+        taskSnapshot.setSingleStream(singleStream);
+        taskSnapshot.setPriority(priority);
+        taskSnapshot.setTargetName(fileName);
+        taskSnapshot.setChecksum(checksum == null ? null : checksum.toString());
+        taskSnapshot.setBlockSize(blockSize);
+        taskSnapshot.setEffectiveUrl(http.getEffectiveUrl());
+        taskSnapshot.setEffectiveUrlExpireTime(http.getRedirectExpireTime());
+        taskSnapshot.setEtag(primaryMirror().getEtag());
+        taskSnapshot.setLastModified(primaryMirror().getLastModified());
+        for (Mirror mirror : mirrors) {
+            taskSnapshot.getMirrors().add(mirror.snapshot());
+        }
         for (DownloadSubTask subTask : subTasks) {
-            taskSnapshot.getSubtasks().add(subTask.snapshot());
+            // idle workers hold nothing that is not already counted as done
+            if (totalSize == UNKNOWN_TOTAL_SIZE || !subTask.isFinished()) {
+                taskSnapshot.getSubtasks().add(subTask.snapshot());
+            }
         }
+        final List<Range> blocks = new ArrayList<>();
+        for (DownloadSubTask subTask : subTasks) {
+            blocks.addAll(subTask.batched());
+            if (totalSize != UNKNOWN_TOTAL_SIZE) {
+                blocks.addAll(subTask.unwrittenBlocks());
+            }
+        }
+        blocks.addAll(pendingBlocks);
+        taskSnapshot.getPendingBlocks().addAll(coalesce(blocks));
         return taskSnapshot;
     }
 
-    private Path tmpFilePath() {
+    /**
+     * Adjacent blocks as one range, the untouched rest of a large file is then a single range and only holes
+     * are stored apart.
+     */
+    private static List<Range> coalesce(List<Range> blocks) {
+        final List<Range> ranges = new ArrayList<>();
+        Range last = null;
+        for (Range block : blocks) {
+            if (last != null && last.getEnd() + 1 == block.getStart()) {
+                last = new Range(last.getStart(), block.getEnd());
+                ranges.set(ranges.size() - 1, last);
+            } else {
+                last = block;
+                ranges.add(block);
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * The temp file to splice a response into, the caller releases the returned reference once the splice is done.
+     *
+     * @return null if splicing is disabled or not possible
+     */
+    synchronized SpliceTarget retainSpliceTarget() {
+        if (spliceTarget == null) {
+            if (spliceUnavailable || !TransportRuntime.INSTANCE.isSpliceEnabled() || state != State.started) {
+                return null;
+            }
+            try {
+                spliceTarget = SpliceTarget.open(tmpFilePath());
+            } catch (IOException e) {
+                spliceUnavailable = true;
+                LOG.warn("splice is not possible, the body is copied instead, task {}, {}", id, e.getMessage());
+                return null;
+            }
+        }
+        spliceTarget.retain();
+        return spliceTarget;
+    }
+
+    /**
+     * Netty takes the file offset of a splice as an int, so a response that ends past 2 GiB is copied instead,
+     * which is told once per task.
+     */
+    synchronized void spliceOffsetLimitReached(long end) {
+        if (!spliceOffsetLimitTold) {
+            spliceOffsetLimitTold = true;
+            LOG.warn("responses ending past 2 GiB, the first at {}, are copied instead of spliced, task {}", end, id);
+        }
+    }
+
+    private synchronized void releaseSpliceTarget() {
+        if (spliceTarget != null) {
+            // splices still in flight keep the descriptor open until they end
+            spliceTarget.release();
+            spliceTarget = null;
+        }
+    }
+
+    Path tmpFilePath() {
         return new File(targetFileDirectory(), id).toPath();
     }
 
@@ -0,0 +1,103 @@
+package com.github.qlb;
+
+import io.netty.channel.EventLoop;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DefaultDnsCnameCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.apache.commons.cli.CommandLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous name resolution shared by all connections.
+ * Answers are cached for their TTL, so parallel subtasks and retries to one host cost a single lookup.
+ */
+public enum HostResolver {
+    INSTANCE;
+    private static final Logger LOG = LoggerFactory.getLogger(HostResolver.class);
+    private final DefaultDnsCache cache = new DefaultDnsCache();
+    private final DefaultDnsCnameCache cnameCache = new DefaultDnsCnameCache();
+    private final Map<String, AtomicInteger> rotations = new ConcurrentHashMap<>();
+    private boolean spreadAddresses;
+    private DnsAddressResolverGroup resolvers;
+
+    public synchronized void configure(CommandLine cli) {
+        spreadAddresses = cli.hasOption(DownloadOptions.SPREAD_ADDRESSES);
+    }
+
+    /**
+     * All addresses of the host in the order they should be tried, alternating address families as
+     * happy eyeballs expects. With address spreading every call starts at the next address of the host.
+     */
+    public Future<List<InetSocketAddress>> resolveAll(EventLoop eventLoop, String host, int port) {
+        final Promise<List<InetSocketAddress>> result = eventLoop.newPromise();
+        resolvers().getResolver(eventLoop).resolveAll(InetSocketAddress.createUnresolved(host, port))
+                .addListener(f -> {
+                    if (!f.isSuccess()) {
+                        result.setFailure(f.cause());
+                        return;
+                    }
+                    @SuppressWarnings("unchecked")
+                    final List<InetSocketAddress> addresses = interleave((List<InetSocketAddress>) f.getNow());
+                    if (spreadAddresses && addresses.size() > 1) {
+                        final int next = rotations.computeIfAbsent(host, h -> new AtomicInteger()).getAndIncrement();
+                        Collections.rotate(addresses, -Math.floorMod(next, addresses.size()));
+                    }
+                    LOG.debug("resolve {} to {}", host, addresses);
+                    result.setSuccess(addresses);
+                });
+        return result;
+    }
+
+    private static List<InetSocketAddress> interleave(List<InetSocketAddress> addresses) {
+        final List<InetSocketAddress> preferred = new ArrayList<>();
+        final List<InetSocketAddress> others = new ArrayList<>();
+        final boolean preferIpv6 = !addresses.isEmpty() && addresses.get(0).getAddress() instanceof Inet6Address;
+        for (InetSocketAddress address : addresses) {
+            if ((address.getAddress() instanceof Inet6Address) == preferIpv6) {
+                preferred.add(address);
+            } else {
+                others.add(address);
+            }
+        }
+        final List<InetSocketAddress> result = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(preferred.size(), others.size()); i++) {
+            if (i < preferred.size()) {
+                result.add(preferred.get(i));
+            }
+            if (i < others.size()) {
+                result.add(others.get(i));
+            }
+        }
+        return result;
+    }
+
+    private synchronized DnsAddressResolverGroup resolvers() {
+        if (resolvers == null) {
+            resolvers = new DnsAddressResolverGroup(new DnsNameResolverBuilder()
+                    .channelType(TransportRuntime.INSTANCE.datagramChannelClass())
+                    .resolveCache(cache)
+                    .cnameCache(cnameCache));
+        }
+        return resolvers;
+    }
+
+    public synchronized void close() {
+        if (resolvers != null) {
+            resolvers.close();
+            resolvers = null;
+        }
+    }
+}
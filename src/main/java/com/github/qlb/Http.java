@@ -5,6 +5,7 @@ import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.util.internal.StringUtil;
 
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URLDecoder;
 import java.util.HashMap;
 import java.util.Map;
@@ -20,6 +21,7 @@ public class Http {
     private static final String FILE_NAME_PATTERN_IN_HEADER = ".*filename=(?<fname>.+)$";
     private static final int DEFAULT_PORT_SECURE = 443;
     private static final int DEFAULT_PORT_INSECURE = 80;
+    private static final int MAX_REDIRECTS = 10;
     private final String url;
     private String decodedStripedUrl;
     private final Map<String, String> query = new HashMap<>();
@@ -28,10 +30,25 @@ public class Http {
     private String host;
     private int port;
     private boolean secure;
+    private Http redirect;
+    private long redirectExpireTime;
+    /**
+     * The number of redirects that led to this url, 0 for a url that was not redirected to.
+     */
+    private final int hops;
+    /**
+     * The redirect target that last answered with content, files are named after it.
+     */
+    private Http followed;
 
     public Http(String url) {
+        this(url, 0);
+    }
+
+    private Http(String url, int hops) {
         parseUrl(url);
         this.url = url;
+        this.hops = hops;
     }
 
     private String decodeAndParseQuery(String url) {
@@ -112,8 +129,93 @@ public class Http {
         return url;
     }
 
+    /**
+     * Where requests for this url go: the cached end of its redirects until it expires, or this url itself.
+     */
+    public synchronized Http target() {
+        if (redirect != null && System.currentTimeMillis() >= redirectExpireTime) {
+            redirect = null;
+        }
+        return redirect != null ? redirect : this;
+    }
+
+    /**
+     * A request to {@code from}, this url or a target of its redirects, answered with a redirect. The location is
+     * used until the first hop of the chain expires.
+     */
+    public synchronized void redirect(Http from, String location, long expireTime) {
+        if (from.hops >= MAX_REDIRECTS) {
+            throw new IllegalStateException("too many redirects for " + url);
+        }
+        final String resolved;
+        if (location.startsWith(SCHEMA_SECURE) || location.startsWith(SCHEMA_INSECURE)) {
+            resolved = location;
+        } else {
+            resolved = URI.create(from.getUrl()).resolve(location).toString();
+        }
+        redirectExpireTime = from == this ? expireTime : Math.min(redirectExpireTime, expireTime);
+        redirect = new Http(resolved, from.hops + 1);
+    }
+
+    /**
+     * A request to {@code target} answered with content, the redirect chain that led there is complete.
+     */
+    public synchronized void redirectFollowed(Http target) {
+        if (target != this) {
+            followed = target;
+        }
+    }
+
+    /**
+     * Forget the cached redirect, so the next request starts from this url again.
+     *
+     * @return whether there was a redirect
+     */
+    public synchronized boolean clearRedirect() {
+        final boolean cleared = target() != this;
+        redirect = null;
+        return cleared;
+    }
+
+    /**
+     * The url requests go to after redirects, or the last one that answered with content once they expired,
+     * null if there is none.
+     */
+    public synchronized String getEffectiveUrl() {
+        if (target() != this) {
+            return redirect.getUrl();
+        }
+        return followed == null ? null : followed.getUrl();
+    }
+
+    public synchronized long getRedirectExpireTime() {
+        return redirectExpireTime;
+    }
+
+    public synchronized void restoreRedirect(String effectiveUrl, long expireTime) {
+        if (effectiveUrl == null) {
+            return;
+        }
+        followed = new Http(effectiveUrl, 1);
+        if (expireTime > System.currentTimeMillis()) {
+            redirect = followed;
+            redirectExpireTime = expireTime;
+        }
+    }
+
+    /**
+     * The name from the url that served the content, which is the end of the redirects if there were any.
+     */
     public String getFileName() {
-        return findFileName(decodedStripedUrl, query);
+        final Http source;
+        synchronized (this) {
+            source = followed != null ? followed : this;
+        }
+        return findFileName(source.decodedStripedUrl, source.query);
+    }
+
+    public HttpHeaders getResponseHeaders() {
+        return responseHeaders;
     }
 
     public void setResponseHeaders(HttpHeaders responseHeaders) {
@@ -1,117 +1,419 @@
 package com.github.qlb;
 
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.concurrent.Future;
 import io.netty.util.internal.StringUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 
 public class HttpHandler extends SimpleChannelInboundHandler<HttpObject> {
     private static final Logger LOG = LoggerFactory.getLogger(HttpHandler.class);
-    private final HttpTask task;
-    private Throwable error;
-    public HttpHandler(HttpTask task) {
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+    private static final Pattern UNSATISFIED_CONTENT_RANGE_PATTERN = Pattern.compile("bytes\\s+\\*/(\\d+)");
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age=(\\d+)");
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+    private static final long PERMANENT_REDIRECT_TTL_MILLIS = 24 * 3600 * 1000;
+    private static final long TEMPORARY_REDIRECT_TTL_MILLIS = 10 * 60 * 1000;
+    private static final long MIN_REDIRECT_TTL_MILLIS = 60 * 1000;
+    private static final long MIN_SPLICE_SIZE = 64 * 1024;
+    private static final int SPLICE_PIECE_SIZE = 1024 * 1024;
+    private final Http target;
+    private volatile HttpTask task;
+    private volatile Runnable onFailure;
+    private long streamPosition;
+    private volatile Throwable error;
+    private volatile boolean requestSent;
+    private volatile boolean keepAlive;
+    private volatile boolean responseComplete;
+    private volatile boolean redirected;
+    private volatile List<Range> requestedRanges = Collections.emptyList();
+    private MultipartByteRanges multipart;
+    private volatile Channel channel;
+    /**
+     * File offset of the last body byte of a single range response that may be spliced, -1 otherwise.
+     */
+    private long spliceEnd = -1;
+    public HttpHandler(HttpTask task, Runnable onFailure) {
         this.task = task;
+        this.onFailure = onFailure;
+        this.target = task.getHttp().target();
+    }
+
+    /**
+     * Where the request of this handler goes, fixed when it is created so it matches the acquired connection.
+     */
+    Http getTarget() {
+        return target;
+    }
+
+    /**
+     * The number of ranges the request asked for, more than one is a {@code multipart/byteranges} request.
+     */
+    int getRequestedRanges() {
+        return requestedRanges.size();
+    }
+
+    /**
+     * The channel the response arrives on, null until the handler is added to it.
+     */
+    Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Route the rest of the current response to another task.
+     */
+    void transferTo(HttpTask task, Runnable onFailure) {
+        this.task = task;
+        this.onFailure = onFailure;
+    }
+
+    /**
+     * File offset of the next body byte of the response, only touched on the event loop of the channel.
+     */
+    long getStreamPosition() {
+        return streamPosition;
+    }
+
+    void advance(long bytes) {
+        streamPosition += bytes;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+            if (!(msg instanceof HttpResponse) && !(msg instanceof HttpContent)) {
+                throw new IllegalStateException("Unexpected message type " + msg.getClass());
+            }
+            // an h2 stream delivers a body-less response as one FullHttpResponse, which is both
+            if (msg instanceof HttpResponse) {
+                handleResponse(ctx, (HttpResponse) msg);
+            }
             if (msg instanceof HttpContent) {
                 handleContent(ctx, (HttpContent) msg);
-            } else if (msg instanceof HttpResponse) {
-                handleResponse(ctx, (HttpResponse) msg);
-            } else {
-                throw new IllegalStateException("Unexpected message type " + msg.getClass());
             }
     }
 
     private void handleResponse(ChannelHandlerContext ctx, HttpResponse response) {
         LOG.info("{} receive response {}", task, response.status());
         final HttpHeaders headers = response.headers();
-        if (response.status() == HttpResponseStatus.OK) {
-            if (task instanceof DownloadTask) {
-                DownloadTask fullTask = (DownloadTask) task;
-                long contentLength = Long.parseLong(headers.get(HttpHeaderNames.CONTENT_LENGTH, "0"));
-                if (headers.contains(HttpHeaderNames.ACCEPT_RANGES)) {
-                    allocateSubTasks(fullTask, contentLength, Runtime.getRuntime().availableProcessors());
-                } else {
-                    allocateSubTasks(fullTask, 0, 1);
-                }
-                fullTask.ready();
-            } else {
-                task.getHttp().setResponseHeaders(headers);
-            }
+        keepAlive = HttpUtil.isKeepAlive(response);
+        if (response.status().codeClass() == HttpStatusClass.SUCCESS) {
+            task.getHttp().redirectFollowed(target);
+        }
+        if (task instanceof DownloadTask && (response.status() == HttpResponseStatus.OK
+                || response.status() == HttpResponseStatus.PARTIAL_CONTENT
+                || response.status() == HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE)) {
+            handleProbeResponse((DownloadTask) task, response);
+        } else if (task instanceof DownloadSubTask && !((DownloadSubTask) task).acceptResponse(this, response)) {
+            LOG.warn("ignore response {}, task {}", response.status(), task);
+        } else if (response.status() == HttpResponseStatus.OK) {
+            task.getHttp().setResponseHeaders(headers);
+            // the range was ignored and the whole body follows, receive skips what is already written
+            streamPosition = 0;
         } else if (response.status() == HttpResponseStatus.PARTIAL_CONTENT) {
             LOG.info("receive partial content, task {}", task);
             task.getHttp().setResponseHeaders(headers);
-        } else if ((response.status() == HttpResponseStatus.FOUND || response.status() == HttpResponseStatus.MOVED_PERMANENTLY)
-                && task instanceof DownloadTask) {
+            final String boundary = MultipartByteRanges.boundary(headers.get(HttpHeaderNames.CONTENT_TYPE));
+            if (boundary != null) {
+                multipart = new MultipartByteRanges(boundary, new MultipartByteRanges.Listener() {
+                    @Override
+                    public void partStarted(long start, long end) {
+                        streamPosition = start;
+                        ((DownloadSubTask) task).partStarted(HttpHandler.this, start);
+                    }
+
+                    @Override
+                    public void partContent(ByteBuf content) throws IOException {
+                        ((DownloadSubTask) task).receive(HttpHandler.this, content, false);
+                    }
+                });
+            } else {
+                // a server may answer several ranges with one range spanning them
+                final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(headers.get(HttpHeaderNames.CONTENT_RANGE, ""));
+                if (matcher.matches()) {
+                    streamPosition = Long.parseLong(matcher.group(1));
+                    spliceEnd = Long.parseLong(matcher.group(2));
+                    if (!covers(streamPosition, Long.parseLong(matcher.group(2)))) {
+                        // the first range is served, later requests of this mirror ask for one range only
+                        ((DownloadSubTask) task).multiRangeRefused();
+                    }
+                }
+            }
+        } else if ((response.status() == HttpResponseStatus.TOO_MANY_REQUESTS
+                || response.status() == HttpResponseStatus.SERVICE_UNAVAILABLE) && task instanceof DownloadSubTask) {
+            ((DownloadSubTask) task).throttled(this, retryAfterMillis(headers));
+        } else if ((response.status() == HttpResponseStatus.TOO_MANY_REQUESTS
+                || response.status() == HttpResponseStatus.SERVICE_UNAVAILABLE) && task instanceof DownloadTask) {
+            ((DownloadTask) task).probeThrottled(retryAfterMillis(headers));
+        } else if (isRedirect(response.status())) {
             String location = response.headers().get(HttpHeaderNames.LOCATION);
             if (StringUtil.isNullOrEmpty(location)) {
                 throw new IllegalStateException("Location is absent in response headers");
             }
-            ((DownloadTask) task).discarded();
             LOG.info("redirect to {}, task {}", location, task);
-            new DownloadTask(location, task.targetFileDirectory()).start();
+            // relative to the url that answered, the cached target of the task may have moved on meanwhile
+            task.getHttp().redirect(target, location, System.currentTimeMillis() + redirectTtlMillis(response));
+            // the request is sent again once this response is read, so the connection can be reused for it
+            redirected = true;
         } else {
+            if (task.getHttp().clearRedirect()) {
+                LOG.warn("redirect target {} answered {}, start over from {}", target.getUrl(), response.status(), task.getHttp().getUrl());
+            }
             throw new IllegalStateException("unexpected response " + response.status());
         }
     }
 
     private void handleContent(ChannelHandlerContext ctx, HttpContent content) throws IOException {
+        // bodies that are thrown away took bandwidth as well
+        task.getBandwidth().consume(content.content().readableBytes(), ctx.channel());
+        if (content instanceof LastHttpContent) {
+            responseComplete = true;
+        }
         if (error != null) {
             LOG.warn("ignore content because there is error occurred, task {}", task, error);
             return;
         }
+        if (redirected) {
+            if (responseComplete) {
+                task.redirected(this);
+            }
+            return;
+        }
         if (task instanceof DownloadSubTask) {
-            ((DownloadSubTask) task).receive(ctx, content);
+            final boolean last = content instanceof LastHttpContent;
+            if (multipart != null) {
+                multipart.feed(content.content());
+                ((DownloadSubTask) task).receive(this, Unpooled.EMPTY_BUFFER, last);
+            } else {
+                ((DownloadSubTask) task).receive(this, content.content(), last);
+            }
         }
     }
 
-    private void allocateSubTasks(DownloadTask task, long totalLen, int numSubTasks) {
-        long size = totalLen / numSubTasks;
-        for (int i = 0; i < numSubTasks; i++) {
-            if (i != numSubTasks - 1) {
-               new DownloadSubTask(task, i, new Range(i * size, (i + 1) * size - 1)).ready();
+    /**
+     * The first request of a task is a {@code GET} for {@code bytes=0-}: a 206 tells the total size and that ranges
+     * are supported, a 200 that they are not. Either way the body already streaming is kept for the first subtask.
+     */
+    private void handleProbeResponse(DownloadTask fullTask, HttpResponse response) {
+        final HttpHeaders headers = response.headers();
+        fullTask.getHttp().setResponseHeaders(headers);
+        fullTask.probed(headers);
+        if (response.status() == HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+            final Matcher matcher = UNSATISFIED_CONTENT_RANGE_PATTERN.matcher(headers.get(HttpHeaderNames.CONTENT_RANGE, ""));
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) != 0) {
+                throw new IllegalStateException("unexpected response " + response.status());
+            }
+            LOG.info("remote file is empty, task {}", fullTask);
+            fullTask.ready();
+            return;
+        }
+        final DownloadSubTask first;
+        if (response.status() == HttpResponseStatus.PARTIAL_CONTENT) {
+            final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(headers.get(HttpHeaderNames.CONTENT_RANGE, ""));
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) != 0) {
+                throw new IllegalStateException("unexpected content range " + headers.get(HttpHeaderNames.CONTENT_RANGE));
+            }
+            if ("*".equals(matcher.group(3))) {
+                first = fullTask.allocateWhole(JGetTask.UNKNOWN_TOTAL_SIZE);
             } else {
-                new DownloadSubTask(task, i, new Range(i * size, totalLen - 1)).ready();
+                first = fullTask.allocateBlocks(Long.parseLong(matcher.group(3)));
             }
+        } else {
+            // no range support, the whole body comes through this one response
+            first = fullTask.allocateWhole(HttpUtil.getContentLength(response, JGetTask.UNKNOWN_TOTAL_SIZE));
         }
+        fullTask.adoptProbe(first);
+        fullTask.ready();
     }
 
-    private void sendRequest(ChannelHandlerContext ctx, Http http) {
-        final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.HEAD, http.getUrl());
-        request.headers().set(HttpHeaderNames.HOST, http.getHost());
-        if (task instanceof DownloadSubTask) {
-            request.setMethod(HttpMethod.GET);
-            final Range range = ((DownloadSubTask) task).getRange();
+    /**
+     * The total size in the content range of a 206, or {@link JGetTask#UNKNOWN_TOTAL_SIZE} if it is absent or {@code *}.
+     */
+    static long contentRangeTotal(HttpHeaders headers) {
+        final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(headers.get(HttpHeaderNames.CONTENT_RANGE, ""));
+        if (!matcher.matches() || "*".equals(matcher.group(3))) {
+            return JGetTask.UNKNOWN_TOTAL_SIZE;
+        }
+        return Long.parseLong(matcher.group(3));
+    }
+
+    private boolean covers(long start, long end) {
+        for (Range range : requestedRanges) {
+            if (range.getStart() < start || range.getEnd() > end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRedirect(HttpResponseStatus status) {
+        return status == HttpResponseStatus.MOVED_PERMANENTLY || status == HttpResponseStatus.FOUND
+                || status == HttpResponseStatus.SEE_OTHER || status == HttpResponseStatus.TEMPORARY_REDIRECT
+                || status == HttpResponseStatus.PERMANENT_REDIRECT;
+    }
+
+    /**
+     * How long a redirect is followed without asking again: its max-age if given, otherwise long for permanent
+     * redirects and short for temporary ones, which often point to signed urls.
+     */
+    private static long redirectTtlMillis(HttpResponse response) {
+        final Matcher matcher = MAX_AGE_PATTERN.matcher(response.headers().get(HttpHeaderNames.CACHE_CONTROL, ""));
+        if (matcher.find()) {
+            return Math.max(MIN_REDIRECT_TTL_MILLIS, Long.parseLong(matcher.group(1)) * 1000);
+        }
+        if (response.status() == HttpResponseStatus.MOVED_PERMANENTLY || response.status() == HttpResponseStatus.PERMANENT_REDIRECT) {
+            return PERMANENT_REDIRECT_TTL_MILLIS;
+        }
+        return TEMPORARY_REDIRECT_TTL_MILLIS;
+    }
+
+    private static long retryAfterMillis(HttpHeaders headers) {
+        try {
+            return Math.max(0, Long.parseLong(headers.get(HttpHeaderNames.RETRY_AFTER, ""))) * 1000;
+        } catch (NumberFormatException e) {
+            // absent or a http date, which is not worth a clock comparison
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+    }
+
+    /**
+     * Whether the connection can serve another request: nothing was sent or the response was fully read.
+     */
+    public boolean isReusable() {
+        return error == null && (!requestSent || (responseComplete && keepAlive));
+    }
+
+    private void sendRequest(ChannelHandlerContext ctx) {
+        final DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, target.getUrl());
+        request.headers().set(HttpHeaderNames.HOST, target.getHost());
+        if (task instanceof DownloadTask) {
+            request.headers().set(HttpHeaderNames.RANGE, "bytes=0-");
+            streamPosition = 0;
+        } else if (task instanceof DownloadSubTask) {
+            final DownloadSubTask subTask = (DownloadSubTask) task;
+            final Range range = subTask.getRange();
             long readBytes = task.getReadBytes();
             if (task.isFinished()) {
                 return;
-            } else if (range.size() > 0 && readBytes < range.size()) {
-                request.headers().set(HttpHeaderNames.RANGE,
-                        String.format("bytes=%s-%s", range.getStart() + readBytes, range.getEnd()));
+            }
+            final List<Range> ranges = subTask.requestRanges(this);
+            if (!ranges.isEmpty()) {
+                final StringJoiner value = new StringJoiner(",", "bytes=", "");
+                for (Range part : ranges) {
+                    value.add(part.getStart() + "-" + part.getEnd());
+                }
+                request.headers().set(HttpHeaderNames.RANGE, value.toString());
+                final String ifRange = subTask.ifRange();
+                if (ifRange != null) {
+                    request.headers().set(HttpHeaderNames.IF_RANGE, ifRange);
+                }
+                requestedRanges = ranges;
+                streamPosition = ranges.get(0).getStart();
+            } else {
+                streamPosition = range.getStart() + readBytes;
             }
         }
-        LOG.info("send request , url {}, task {}", request.uri(), task);
+        LOG.info("send request , url {}, range {}, task {}", request.uri(), request.headers().get(HttpHeaderNames.RANGE), task);
+        requestSent = true;
         ctx.writeAndFlush(request);
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (spliceEnd >= 0 && !responseComplete && error == null) {
+            splice(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    /**
+     * Once the headers and the body bytes read with them are handled, the rest of the body goes from the socket
+     * straight into the file, in pieces so progress and the speed check see it. The codec never sees those bytes,
+     * so it is replaced once they are in, which keeps the connection fit for the next request.
+     */
+    private void splice(ChannelHandlerContext ctx) {
+        final long start = streamPosition;
+        final long end = spliceEnd + 1;
+        // decided once per response
+        spliceEnd = -1;
+        if (!(task instanceof DownloadSubTask) || end - start < MIN_SPLICE_SIZE
+                || !TransportRuntime.INSTANCE.canSplice(ctx.channel()) || ctx.pipeline().get(SslHandler.class) != null) {
+            return;
+        }
+        final DownloadSubTask subTask = (DownloadSubTask) task;
+        if (!subTask.canSplice(this, start, end - start)) {
+            return;
+        }
+        if (end > Integer.MAX_VALUE) {
+            subTask.spliceOffsetLimitReached(end);
+            return;
+        }
+        final SpliceTarget target = subTask.retainSpliceTarget();
+        if (target == null) {
+            return;
+        }
+        LOG.info("splice {} bytes from {} into the file, task {}", end - start, start, task);
+        // spliced bytes take no memory, but a splice only moves on with reads
+        ReadGate.release(ctx.channel(), ReadGate.Hold.MEMORY);
+        final AbstractEpollStreamChannel epollChannel = (AbstractEpollStreamChannel) ctx.channel();
+        for (long offset = start; offset < end; offset += SPLICE_PIECE_SIZE) {
+            final long pieceOffset = offset;
+            final int length = (int) Math.min(SPLICE_PIECE_SIZE, end - offset);
+            final boolean last = offset + length == end;
+            target.retain();
+            epollChannel.spliceTo(target.descriptor(), (int) pieceOffset, length).addListener(f -> {
+                target.release();
+                spliced(ctx, f, pieceOffset, length, last);
+            });
+        }
+        target.release();
+    }
+
+    private void spliced(ChannelHandlerContext ctx, Future<?> future, long offset, int length, boolean last) {
+        if (!future.isSuccess()) {
+            if (error == null) {
+                LOG.info("splice ended early, task {}, {}", task, future.cause().toString());
+                error = future.cause();
+                ctx.close();
+            }
+            return;
+        }
+        streamPosition += length;
+        task.getBandwidth().consume(length, ctx.channel());
+        if (last) {
+            ConnectionPool.INSTANCE.resetCodec(ctx.channel());
+            responseComplete = true;
+        }
+        ((DownloadSubTask) task).spliced(this, offset, length, last);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         LOG.error("exception caught, task {}", task, error);
         error = cause;
-        task.failed();
+        onFailure.run();
     }
 
     @Override
-    public void channelActive(ChannelHandlerContext ctx) {
-       sendRequest(ctx, task.getHttp());
+    public void handlerAdded(ChannelHandlerContext ctx) {
+       channel = ctx.channel();
+       sendRequest(ctx);
     }
 
 }
@@ -20,10 +20,22 @@ public abstract class HttpTask implements JGetTask {
         }
     }
 
+    /**
+     * The response of the handler was a redirect, which is now the target of {@link #getHttp()}.
+     */
+    public void redirected(HttpHandler handler) {
+        start();
+    }
+
     @Override
     public LocalDateTime createTime() {
         return createTime;
     }
 
     public abstract Http getHttp();
+
+    /**
+     * The bucket every byte received for the task is taken from.
+     */
+    public abstract TokenBucket getBandwidth();
 }
@@ -28,6 +28,13 @@ public interface JGetTask {
 
     }
 
+    /**
+     * Called about once a second while the task is active.
+     */
+    default void tick() {
+
+    }
+
     void start();
     void ready();
 
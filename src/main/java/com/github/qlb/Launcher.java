@@ -11,6 +11,12 @@ public class Launcher {
         final Options options = DownloadOptions.getDefaultOptions();
         try {
             final CommandLine cli = parser.parse(options, args);
+            TransportRuntime.INSTANCE.configure(cli);
+            ConnectionPool.INSTANCE.configure(cli);
+            HostResolver.INSTANCE.configure(cli);
+            TaskManager.INSTANCE.configure(cli);
+            DiskWriter.INSTANCE.configure(cli);
+            MemoryBudget.INSTANCE.configure(cli);
             if (cli.hasOption(DownloadOptions.HELP)) {
                 helpFormatter.printHelp("jget", options);
             } else if (cli.hasOption(DownloadOptions.LIST_TASKS)) {
@@ -26,6 +32,10 @@ public class Launcher {
                     } catch (Exception e) {
                         index = selectUnfinishedTask();
                     }
+                    if (cli.hasOption(DownloadOptions.PRIORITY)) {
+                        // before it is queued, so it takes its place by the new priority
+                        TaskManager.INSTANCE.setPriority(index, DownloadTask.priority(cli));
+                    }
                     TaskManager.INSTANCE.resumeTask(index);
                 }
             } else if (cli.hasOption(DownloadOptions.DELETE)) {
@@ -41,13 +51,16 @@ public class Launcher {
                 }
             } else if (cli.hasOption(DownloadOptions.DELETE_ALL)) {
                 TaskManager.INSTANCE.clearTasks();
+            } else if (cli.hasOption(DownloadOptions.INPUT_FILE)) {
+                TaskManager.INSTANCE.importManifest(cli);
             } else if (cli.hasOption(DownloadOptions.URL)) {
-                new DownloadTask(cli).start();
+                final DownloadTask task = new DownloadTask(cli);
+                TaskManager.INSTANCE.enqueue(task, task::start);
             } else {
                 throw new ParseException("Missing argument url");
             }
         } catch (ParseException e) {
-            e.printStackTrace();
+            System.err.println(e.getMessage());
             helpFormatter.printHelp("jget", options);
         }
     }
@@ -0,0 +1,163 @@
+package com.github.qlb;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A list of files to download, read line by line on its own thread so a slow pipe never blocks the caller.
+ * A line is either a url or a json object like {@code {"url": "...", "name": "...", "checksum": "sha256:...",
+ * "priority": 1}}, blank lines and lines starting with {@code #} are skipped.
+ * <p>
+ * Only {@link #BUFFERED_ENTRIES} entries are read ahead, so memory stays flat however long the list is. Of those the
+ * entry of the highest priority is taken first, entries of the same priority in the order of the list.
+ */
+final class Manifest {
+    private static final Logger LOG = LoggerFactory.getLogger(Manifest.class);
+    private static final int BUFFERED_ENTRIES = 256;
+    private final String source;
+    private final BufferedReader reader;
+    private final Runnable onRead;
+    private final BlockingQueue<Entry> entries;
+    private final Semaphore room = new Semaphore(BUFFERED_ENTRIES);
+    private volatile boolean ended;
+
+    static final class Entry {
+        private String url;
+        private String name;
+        private String checksum;
+        private Integer priority;
+        // not part of the json, the line the entry was read from
+        private transient int line;
+
+        String getUrl() {
+            return url;
+        }
+
+        /**
+         * The file name to save as, null to take it from the url.
+         */
+        String getName() {
+            return name;
+        }
+
+        String getChecksum() {
+            return checksum;
+        }
+
+        Integer getPriority() {
+            return priority;
+        }
+    }
+
+    private Manifest(String source, BufferedReader reader, int defaultPriority, Runnable onRead) {
+        this.source = source;
+        this.reader = reader;
+        this.onRead = onRead;
+        this.entries = new PriorityBlockingQueue<>(BUFFERED_ENTRIES, Comparator
+                .comparingInt((Entry entry) -> entry.priority != null ? entry.priority : defaultPriority).reversed()
+                .thenComparingInt(entry -> entry.line));
+    }
+
+    /**
+     * @param source the path of the list, {@code -} for stdin
+     * @param defaultPriority the priority of entries that name none
+     * @param onRead called on the reading thread after an entry is buffered and once the list ended
+     */
+    static Manifest open(String source, int defaultPriority, Runnable onRead) throws IOException {
+        final BufferedReader reader = "-".equals(source)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8);
+        final Manifest manifest = new Manifest(source, reader, defaultPriority, onRead);
+        // not a daemon, the process lives on while it waits for tasks to take its lines
+        new Thread(manifest::read, "jget-manifest").start();
+        return manifest;
+    }
+
+    /**
+     * @return the next entry, or null if none is buffered right now
+     */
+    Entry poll() {
+        final Entry entry = entries.poll();
+        if (entry != null) {
+            room.release();
+        }
+        return entry;
+    }
+
+    /**
+     * Whether every entry of the list was taken.
+     */
+    boolean isExhausted() {
+        return ended && entries.isEmpty();
+    }
+
+    private void read() {
+        final Gson gson = new Gson();
+        int number = 0;
+        try (BufferedReader lines = reader) {
+            String line;
+            while ((line = lines.readLine()) != null) {
+                number++;
+                final Entry entry;
+                try {
+                    entry = parse(gson, line.trim());
+                } catch (JsonParseException | IllegalArgumentException e) {
+                    LOG.warn("skip line {} of {}, {}", number, source, e.getMessage());
+                    continue;
+                }
+                if (entry != null) {
+                    entry.line = number;
+                    room.acquire();
+                    entries.put(entry);
+                    onRead.run();
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("read {} failed at line {}", source, number, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ended = true;
+            onRead.run();
+        }
+    }
+
+    /**
+     * @return the entry of a line, null for a blank line or a comment
+     * @throws IllegalArgumentException if the line has no url or an invalid checksum
+     * @throws JsonParseException if the line is no valid json
+     */
+    static Entry parse(Gson gson, String line) {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        final Entry entry;
+        if (line.startsWith("{")) {
+            entry = gson.fromJson(line, Entry.class);
+            if (entry == null || entry.url == null || entry.url.isEmpty()) {
+                throw new IllegalArgumentException("no url");
+            }
+        } else {
+            entry = new Entry();
+            entry.url = line;
+        }
+        if (entry.checksum != null) {
+            // rejected here rather than after the download
+            Checksum.parse(entry.checksum);
+        }
+        return entry;
+    }
+}
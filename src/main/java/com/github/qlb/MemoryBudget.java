@@ -0,0 +1,118 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.AdaptiveRecvByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.RecvByteBufAllocator;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide bound of received content held in memory, across all tasks and connections, until it is on disk.
+ * A connection takes credit for what it received and stops reading once the credit left would not cover its
+ * next read, every stopped connection reads again when half of the budget is free.
+ * <p>
+ * Reads are capped at {@link #MAX_READ_SIZE} from a pooled allocator, so memory stays within the budget plus one
+ * read per connection that raced for the last credit.
+ */
+public enum MemoryBudget {
+    INSTANCE;
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryBudget.class);
+    private static final long DEFAULT_BUDGET_MB = 32;
+    private static final int MIN_READ_SIZE = 64;
+    private static final int INITIAL_READ_SIZE = 2048;
+    static final int MAX_READ_SIZE = 64 * 1024;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+    private long budget = DEFAULT_BUDGET_MB * 1024 * 1024;
+
+    public synchronized void configure(CommandLine cli) throws ParseException {
+        if (cli.hasOption(DownloadOptions.MEMORY_BUDGET)) {
+            budget = DownloadOptions.longValue(cli, DownloadOptions.MEMORY_BUDGET, 1, Long.MAX_VALUE >> 20, 0) << 20;
+        }
+    }
+
+    ByteBufAllocator allocator() {
+        return PooledByteBufAllocator.DEFAULT;
+    }
+
+    RecvByteBufAllocator receiveAllocator() {
+        return new AdaptiveRecvByteBufAllocator(MIN_READ_SIZE, INITIAL_READ_SIZE, MAX_READ_SIZE);
+    }
+
+    /**
+     * Content of the channel is held until it is written.
+     *
+     * @param source the channel the content came from, it stops reading while the budget is used up
+     */
+    void reserve(long bytes, Channel source) {
+        final long now = used.addAndGet(bytes);
+        peak.accumulateAndGet(now, Math::max);
+        if (now + MAX_READ_SIZE <= budget || source == null) {
+            return;
+        }
+        if (paused.add(source)) {
+            stalls.incrementAndGet();
+            LOG.debug("memory budget is used up, pause reading of {}", source);
+            ReadGate.hold(source, ReadGate.Hold.MEMORY);
+            // what writers hold back for coalescing would otherwise wait for content that does not come
+            DiskWriter.INSTANCE.flushHolding();
+        }
+        // the content may have been written before the channel was added
+        if (used.get() <= budget / 2) {
+            resumeAll();
+        }
+    }
+
+    /**
+     * Held content is written or dropped.
+     */
+    void release(long bytes) {
+        if (used.addAndGet(-bytes) <= budget / 2 && !paused.isEmpty()) {
+            resumeAll();
+        }
+    }
+
+    /**
+     * Whether connections wait for credit, writers then write out what they hold instead of waiting for more.
+     */
+    boolean isExhausted() {
+        return !paused.isEmpty();
+    }
+
+    private void resumeAll() {
+        for (Channel channel : paused) {
+            if (paused.remove(channel)) {
+                ReadGate.release(channel, ReadGate.Hold.MEMORY);
+            }
+        }
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getPeak() {
+        return peak.get();
+    }
+
+    /**
+     * How often a connection stopped reading for lack of credit.
+     */
+    public long getStalls() {
+        return stalls.get();
+    }
+}
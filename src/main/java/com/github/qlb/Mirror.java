@@ -0,0 +1,188 @@
+package com.github.qlb;
+
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+/**
+ * One of the urls a task can download from, with what has been measured about it.
+ * All state is guarded by the lock of the owning {@link DownloadTask}.
+ */
+final class Mirror {
+    private static final double RATE_SMOOTHING = 0.3;
+    private final Http http;
+    private String etag;
+    private String lastModified;
+    private boolean verified;
+    private boolean dropped;
+    private boolean multiRange = true;
+    private double rate;
+    private long assignedBytes;
+    private int failures;
+    private int slowTicks;
+
+    Mirror(String url) {
+        this.http = new Http(url);
+    }
+
+    static Mirror recover(MirrorSnapshot snapshot) {
+        final Mirror mirror = new Mirror(snapshot.getUrl());
+        mirror.http.restoreRedirect(snapshot.getEffectiveUrl(), snapshot.getEffectiveUrlExpireTime());
+        mirror.etag = snapshot.getEtag();
+        mirror.lastModified = snapshot.getLastModified();
+        mirror.dropped = snapshot.isDropped();
+        mirror.rate = snapshot.getRate();
+        return mirror;
+    }
+
+    MirrorSnapshot snapshot() {
+        return new MirrorSnapshot(http.getUrl(), http.getEffectiveUrl(), http.getRedirectExpireTime(),
+                etag, lastModified, dropped, rate);
+    }
+
+    String getEtag() {
+        return etag;
+    }
+
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Remember the validators of the file as this mirror serves it.
+     */
+    void validators(HttpHeaders headers) {
+        etag = headers.get(HttpHeaderNames.ETAG);
+        lastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+    }
+
+    void validators(String etag, String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * The value for {@code If-Range}: a strong etag, or the last modified date, null if there is neither.
+     */
+    String ifRange() {
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return lastModified;
+    }
+
+    /**
+     * Whether a response to a range request shows the file is no longer the one the validators describe.
+     * A 200 means the server turned down the {@code If-Range}.
+     */
+    boolean changed(HttpResponse response) {
+        if (ifRange() == null) {
+            return false;
+        }
+        if (response.status() == HttpResponseStatus.OK) {
+            return true;
+        }
+        return !sameValidators(response.headers());
+    }
+
+    /**
+     * Whether the validators a response comes with, if any, are the remembered ones.
+     */
+    boolean sameValidators(HttpHeaders headers) {
+        final String responseEtag = headers.get(HttpHeaderNames.ETAG);
+        final String responseLastModified = headers.get(HttpHeaderNames.LAST_MODIFIED);
+        return (etag == null || responseEtag == null || etag.equals(responseEtag))
+                && (lastModified == null || responseLastModified == null || lastModified.equals(responseLastModified));
+    }
+
+    boolean isMultiRange() {
+        return multiRange;
+    }
+
+    /**
+     * The server answered a request for several ranges with the whole file or left ranges out.
+     */
+    void multiRangeRefused() {
+        multiRange = false;
+    }
+
+    /**
+     * Forget everything learned about the file, the mirror has to be verified again.
+     */
+    void reset() {
+        etag = null;
+        lastModified = null;
+        verified = false;
+        assignedBytes = 0;
+        failures = 0;
+        slowTicks = 0;
+    }
+
+    Http getHttp() {
+        return http;
+    }
+
+    boolean isVerified() {
+        return verified;
+    }
+
+    void verified() {
+        verified = true;
+    }
+
+    boolean isDropped() {
+        return dropped;
+    }
+
+    void dropped() {
+        dropped = true;
+    }
+
+    /**
+     * Smoothed bytes per second of one connection to this mirror, 0 until measured.
+     */
+    double getRate() {
+        return rate;
+    }
+
+    void sample(long bytesPerSecond) {
+        rate = rate == 0 ? bytesPerSecond : rate * (1 - RATE_SMOOTHING) + bytesPerSecond * RATE_SMOOTHING;
+    }
+
+    long getAssignedBytes() {
+        return assignedBytes;
+    }
+
+    void assigned(long bytes) {
+        assignedBytes += bytes;
+    }
+
+    /**
+     * @return the number of failures in a row
+     */
+    int failed() {
+        return ++failures;
+    }
+
+    void succeeded() {
+        failures = 0;
+    }
+
+    /**
+     * @return the number of ticks in a row this mirror was slow
+     */
+    int slow(boolean slow) {
+        slowTicks = slow ? slowTicks + 1 : 0;
+        return slowTicks;
+    }
+
+    @Override
+    public String toString() {
+        return "Mirror{" +
+                "url=" + http.getUrl() +
+                ", dropped=" + dropped +
+                ", rate=" + (long) rate +
+                '}';
+    }
+}
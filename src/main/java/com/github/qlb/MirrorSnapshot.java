@@ -0,0 +1,63 @@
+package com.github.qlb;
+
+
+public class MirrorSnapshot {
+    private final String url;
+    private final String effectiveUrl;
+    private final long effectiveUrlExpireTime;
+    private final String etag;
+    private final String lastModified;
+    private final boolean dropped;
+    private final double rate;
+
+    public MirrorSnapshot(String url, String effectiveUrl, long effectiveUrlExpireTime,
+                          String etag, String lastModified, boolean dropped, double rate) {
+        this.url = url;
+        this.effectiveUrl = effectiveUrl;
+        this.effectiveUrlExpireTime = effectiveUrlExpireTime;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.dropped = dropped;
+        this.rate = rate;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEffectiveUrl() {
+        return effectiveUrl;
+    }
+
+    public long getEffectiveUrlExpireTime() {
+        return effectiveUrlExpireTime;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isDropped() {
+        return dropped;
+    }
+
+    public double getRate() {
+        return rate;
+    }
+
+    @Override
+    public String toString() {
+        return "MirrorSnapshot{" +
+                "url='" + url + '\'' +
+                ", effectiveUrl='" + effectiveUrl + '\'' +
+                ", etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                ", dropped=" + dropped +
+                ", rate=" + rate +
+                '}';
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Incremental parser of a {@code multipart/byteranges} body, fed with the chunks of a response as they arrive.
+ * The body of every part is passed on as slices of the chunks, nothing is copied.
+ */
+final class MultipartByteRanges {
+    private static final Pattern BOUNDARY_PATTERN = Pattern.compile("boundary=\"?([^\";]+)\"?", Pattern.CASE_INSENSITIVE);
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern.compile("content-range:\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)",
+            Pattern.CASE_INSENSITIVE);
+    private static final String MEDIA_TYPE = "multipart/byteranges";
+    private static final int MAX_LINE_LENGTH = 8192;
+    private final String delimiter;
+    private final StringBuilder line = new StringBuilder();
+    private final Listener listener;
+    private State state = State.PREAMBLE;
+    private long partStart = -1;
+    private long partEnd;
+    private long partRemaining;
+
+    interface Listener {
+        /**
+         * A part for the bytes from {@code start} to {@code end}, both inclusive, begins.
+         */
+        void partStarted(long start, long end);
+
+        void partContent(ByteBuf content) throws IOException;
+    }
+
+    private enum State {
+        PREAMBLE,
+        HEADERS,
+        BODY,
+        DONE
+    }
+
+    MultipartByteRanges(String boundary, Listener listener) {
+        this.delimiter = "--" + boundary;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the boundary if the content type is {@code multipart/byteranges}, null otherwise
+     */
+    static String boundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith(MEDIA_TYPE)) {
+            return null;
+        }
+        final Matcher matcher = BOUNDARY_PATTERN.matcher(contentType);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    void feed(ByteBuf content) throws IOException {
+        while (content.isReadable()) {
+            switch (state) {
+                case BODY:
+                    final int length = (int) Math.min(partRemaining, content.readableBytes());
+                    partRemaining -= length;
+                    if (partRemaining == 0) {
+                        state = State.PREAMBLE;
+                    }
+                    listener.partContent(content.readSlice(length));
+                    break;
+                case DONE:
+                    content.skipBytes(content.readableBytes());
+                    break;
+                default:
+                    final byte b = content.readByte();
+                    if (b != '\n') {
+                        if (line.length() >= MAX_LINE_LENGTH) {
+                            throw new IllegalStateException("line of multipart body is too long");
+                        }
+                        line.append((char) (b & 0xff));
+                        break;
+                    }
+                    if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                        line.setLength(line.length() - 1);
+                    }
+                    final String completed = line.toString();
+                    line.setLength(0);
+                    onLine(completed);
+            }
+        }
+    }
+
+    private void onLine(String text) {
+        if (state == State.PREAMBLE) {
+            // the line break ending a part body and any preamble text are skipped up to the next delimiter
+            if (text.equals(delimiter + "--")) {
+                state = State.DONE;
+            } else if (text.equals(delimiter)) {
+                state = State.HEADERS;
+                partStart = -1;
+            }
+        } else if (text.isEmpty()) {
+            if (partStart < 0) {
+                throw new IllegalStateException("part of multipart body without content range");
+            }
+            state = partEnd >= partStart ? State.BODY : State.PREAMBLE;
+            partRemaining = partEnd - partStart + 1;
+            listener.partStarted(partStart, partEnd);
+        } else {
+            final Matcher matcher = CONTENT_RANGE_PATTERN.matcher(text);
+            if (matcher.matches()) {
+                partStart = Long.parseLong(matcher.group(1));
+                partEnd = Long.parseLong(matcher.group(2));
+            }
+        }
+    }
+}
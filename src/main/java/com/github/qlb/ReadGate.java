@@ -0,0 +1,66 @@
+package com.github.qlb;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reading of a channel may be held for more than one reason at a time, it only reads again once none is left.
+ */
+final class ReadGate {
+    private static final AttributeKey<AtomicInteger> HOLDS = AttributeKey.valueOf(ReadGate.class, "holds");
+    // set by every hold and kept after the release, until the next sample
+    private static final int HELD_SINCE_SAMPLE = 1 << 31;
+
+    enum Hold {
+        /**
+         * The {@link MemoryBudget} is used up.
+         */
+        MEMORY,
+        /**
+         * The {@link TokenBucket} of the task is in debt.
+         */
+        RATE
+    }
+
+    private ReadGate() {
+    }
+
+    static void hold(Channel channel, Hold hold) {
+        holds(channel).getAndUpdate(bits -> bits | 1 << hold.ordinal() | HELD_SINCE_SAMPLE);
+        channel.config().setAutoRead(false);
+    }
+
+    static void release(Channel channel, Hold hold) {
+        if ((holds(channel).updateAndGet(bits -> bits & ~(1 << hold.ordinal())) & ~HELD_SINCE_SAMPLE) == 0) {
+            channel.config().setAutoRead(true);
+        }
+    }
+
+    /**
+     * Whether the channel is held, or was at any time since the last call. A channel that was held received less
+     * than it could, its rate says nothing about the connection.
+     */
+    static boolean sampleHeld(Channel channel) {
+        return holds(channel).getAndUpdate(bits -> bits & ~HELD_SINCE_SAMPLE) != 0;
+    }
+
+    /**
+     * Drop every hold, the channel goes back to the pool for another task.
+     */
+    static void reset(Channel channel) {
+        holds(channel).set(0);
+        channel.config().setAutoRead(true);
+    }
+
+    private static AtomicInteger holds(Channel channel) {
+        final AtomicInteger holds = channel.attr(HOLDS).get();
+        if (holds != null) {
+            return holds;
+        }
+        final AtomicInteger created = new AtomicInteger();
+        final AtomicInteger existing = channel.attr(HOLDS).setIfAbsent(created);
+        return existing != null ? existing : created;
+    }
+}
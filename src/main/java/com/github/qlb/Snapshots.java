@@ -4,11 +4,13 @@ import com.google.common.primitives.Bytes;
 import com.google.gson.Gson;
 import org.iq80.leveldb.DB;
 import org.iq80.leveldb.Options;
+import org.iq80.leveldb.WriteBatch;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -16,26 +18,49 @@ import static org.iq80.leveldb.impl.Iq80DBFactory.*;
 
 public class Snapshots {
     private static final String DB_FILE = "jgetdb";
-    static void persist(String dbFile, Snapshot snapshot) throws IOException {
+    static synchronized void persist(String dbFile, Snapshot snapshot) throws IOException {
         Options options = new Options();
         options.createIfMissing(true);
         try (DB db = factory.open(new File(dbFile), options)) {
-            String clazzName = snapshot.getClass().getName();
-            String json = new Gson().toJson(snapshot);
-            byte[] value = Bytes.concat(new byte[]{(byte) clazzName.length()}, bytes(clazzName), bytes(json));
-            db.put(bytes(snapshot.id()), value);
+            db.put(bytes(snapshot.id()), serializeSnapshot(snapshot));
         }
     }
 
+    private static byte[] serializeSnapshot(Snapshot snapshot) {
+        String clazzName = snapshot.getClass().getName();
+        String json = new Gson().toJson(snapshot);
+        return Bytes.concat(new byte[]{(byte) clazzName.length()}, bytes(clazzName), bytes(json));
+    }
+
     public static void persist(Snapshot snapshot) throws IOException {
         persist(DB_FILE, snapshot);
     }
 
+    /**
+     * Store and remove many snapshots with one write, removals go last so they win over a store of the same task.
+     */
+    public static synchronized void update(Collection<Snapshot> persisted, Collection<String> removed) throws IOException {
+        if (persisted.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        Options options = new Options();
+        options.createIfMissing(true);
+        try (DB db = factory.open(new File(DB_FILE), options); WriteBatch batch = db.createWriteBatch()) {
+            for (Snapshot snapshot : persisted) {
+                batch.put(bytes(snapshot.id()), serializeSnapshot(snapshot));
+            }
+            for (String id : removed) {
+                batch.delete(bytes(id));
+            }
+            db.write(batch);
+        }
+    }
+
     public static Snapshot load(String id) throws IOException {
         return load(DB_FILE, id);
     }
 
-    public static void remove(String id) throws IOException {
+    public static synchronized void remove(String id) throws IOException {
         Options options = new Options();
         options.createIfMissing(true);
         try (DB db = factory.open(new File(DB_FILE), new Options())) {
@@ -47,7 +72,7 @@ public class Snapshots {
         return loadAllTasks(DB_FILE);
     }
 
-    public static List<Snapshot> loadAllTasks(String dbFile) throws IOException {
+    public static synchronized List<Snapshot> loadAllTasks(String dbFile) throws IOException {
         Options options = new Options();
         options.createIfMissing(true);
         List<Snapshot> result = new ArrayList<>();
@@ -62,7 +87,7 @@ public class Snapshots {
         return result;
     }
 
-    static Snapshot load(String dbFile, String id) throws IOException {
+    static synchronized Snapshot load(String dbFile, String id) throws IOException {
         Options options = new Options();
         options.createIfMissing(true);
         try (DB db = factory.open(new File(dbFile), new Options())) {
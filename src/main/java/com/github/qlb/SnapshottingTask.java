@@ -1,5 +1,19 @@
 package com.github.qlb;
 
+import java.io.IOException;
+
 public interface SnapshottingTask extends JGetTask {
     Snapshot snapshot();
+
+    /**
+     * Queued tasks of a higher priority start first, tasks of the same priority in the order they were queued.
+     */
+    int getPriority();
+
+    void setPriority(int priority);
+
+    /**
+     * Make the data counted by earlier snapshots durable, so a stored snapshot never claims bytes a crash can lose.
+     */
+    void sync() throws IOException;
 }
@@ -0,0 +1,74 @@
+package com.github.qlb;
+
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+import io.netty.util.internal.PlatformDependent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+
+/**
+ * The descriptor of a file that socket data is spliced into. Every splice in flight holds a reference, so the
+ * descriptor is only closed, and its number only reused, once no event loop can still write to it.
+ * <p>
+ * Netty opens descriptors truncating the file, so the file is opened by java and the number read from the java
+ * descriptor. The field holding it is private to the jdk, which may rename it or lock it down, so reading it may
+ * fail on a jvm, and the body is then copied instead.
+ */
+final class SpliceTarget extends AbstractReferenceCounted {
+    private static final Logger LOG = LoggerFactory.getLogger(SpliceTarget.class);
+    private final RandomAccessFile file;
+    private final FileDescriptor descriptor;
+
+    private SpliceTarget(RandomAccessFile file, FileDescriptor descriptor) {
+        this.file = file;
+        this.descriptor = descriptor;
+    }
+
+    static SpliceTarget open(Path path) throws IOException {
+        if (!PlatformDependent.hasUnsafe()) {
+            throw new IOException("the descriptor of a file can not be read without unsafe");
+        }
+        final long fdOffset;
+        try {
+            fdOffset = PlatformDependent.objectFieldOffset(java.io.FileDescriptor.class.getDeclaredField("fd"));
+        } catch (NoSuchFieldException | RuntimeException e) {
+            throw new IOException("the descriptor of a file can not be read on this jvm, " + e, e);
+        }
+        final RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        final int number;
+        try {
+            number = PlatformDependent.getInt(file.getFD(), fdOffset);
+        } catch (RuntimeException e) {
+            file.close();
+            throw new IOException("the descriptor of a file can not be read on this jvm, " + e, e);
+        }
+        if (number < 0) {
+            file.close();
+            throw new IOException("the descriptor of a file can not be read on this jvm, got " + number);
+        }
+        return new SpliceTarget(file, new FileDescriptor(number));
+    }
+
+    FileDescriptor descriptor() {
+        return descriptor;
+    }
+
+    @Override
+    protected void deallocate() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            LOG.warn("close splice target failed", e);
+        }
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        return this;
+    }
+}
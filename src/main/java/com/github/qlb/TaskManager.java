@@ -1,10 +1,15 @@
 package com.github.qlb;
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.stream.Collectors;
@@ -12,11 +17,80 @@ import java.util.stream.Collectors;
 public enum TaskManager {
     INSTANCE;
     private static final Logger LOG = LoggerFactory.getLogger(TaskManager.class);
+    private static final int DEFAULT_MIN_CONNECTIONS = 2;
+    private static final int DEFAULT_MAX_CONNECTIONS = 16;
+    private static final long DEFAULT_SPEED_LIMIT = 1024;
+    private static final long DEFAULT_SPEED_TIME = 10;
+    private static final int DEFAULT_MAX_RANGES = 8;
+    private static final long DEFAULT_SYNC_INTERVAL = 2;
+    private static final long SHAPE_INTERVAL_MILLIS = 10;
+    private static final long MAX_SHAPE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int DEFAULT_MAX_ACTIVE_TASKS = 5;
+    private static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 64;
     private final Map<String, SnapshottingTask> currentTasks = new ConcurrentHashMap<>();
     private final Map<String, JGetTask> activeTasks = new ConcurrentHashMap<>();
+    /**
+     * Tasks waiting for a slot, guarded by this.
+     */
+    private final Queue<QueuedTask> queue = new PriorityQueue<>(Comparator
+            .comparingInt((QueuedTask queued) -> queued.task.getPriority()).reversed()
+            .thenComparingLong(queued -> queued.sequence));
+    /**
+     * Tasks holding a slot from their launch until they finish or fail, guarded by this.
+     */
+    private final Set<String> launched = new HashSet<>();
+    private long queueSequence;
+    /**
+     * Stored tasks that are not active but changed since their last snapshot.
+     */
+    private final Set<String> dirtyTasks = ConcurrentHashMap.newKeySet();
+    /**
+     * Tasks to delete from the store with the next batch.
+     */
+    private final Set<String> removedTasks = ConcurrentHashMap.newKeySet();
+    private final Object persistLock = new Object();
+    /**
+     * The manifest being imported and what it needs, guarded by this.
+     */
+    private Manifest manifest;
+    private CommandLine manifestCli;
+    private Map<String, SnapshottingTask> storedByUrl;
+    private int manifestSkipped;
+    // existing files being checked against the checksum of their entry
+    private int manifestVerifying;
+    private boolean stopped;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    // a slow fsync must not hold up ticks and progress
+    private final ScheduledExecutorService syncScheduler = Executors.newSingleThreadScheduledExecutor();
+    // reading a whole file must hold up neither the disk writers nor the event loop
+    private final ExecutorService checksumExecutor = Executors.newSingleThreadExecutor();
     private volatile ScheduledFuture<?> periodicalSnapshotting;
     private volatile ScheduledFuture<?> periodicalShowProgress;
+    private volatile ScheduledFuture<?> periodicalTick;
+    private volatile ScheduledFuture<?> periodicalShaping;
+    private int minConnections = DEFAULT_MIN_CONNECTIONS;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long speedLimit = DEFAULT_SPEED_LIMIT;
+    private long speedTime = DEFAULT_SPEED_TIME;
+    private int maxRanges = DEFAULT_MAX_RANGES;
+    private long syncInterval = DEFAULT_SYNC_INTERVAL;
+    private long limitRate;
+    private long taskLimitRate;
+    private long lastShapeNanos;
+    private int maxActiveTasks = DEFAULT_MAX_ACTIVE_TASKS;
+    private int maxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+
+    private static final class QueuedTask {
+        private final SnapshottingTask task;
+        private final Runnable launch;
+        private final long sequence;
+
+        private QueuedTask(SnapshottingTask task, Runnable launch, long sequence) {
+            this.task = task;
+            this.launch = launch;
+            this.sequence = sequence;
+        }
+    }
 
     {
         try {
@@ -27,23 +101,267 @@ public enum TaskManager {
     }
 
 
-    public void addTask(@Nonnull JGetTask task) {
-        if (task instanceof SnapshottingTask) {
-            currentTasks.put(task.id(), (SnapshottingTask) task);
-            try {
-                System.out.println("persist task " + task.id());
-                Snapshots.persist(((SnapshottingTask) task).snapshot());
-                if (periodicalSnapshotting == null) {
-                    periodicalSnapshotting = scheduler.scheduleAtFixedRate(this::persistTasksPeriodically, 2, 2, TimeUnit.SECONDS);
+    public synchronized void configure(CommandLine cli) throws ParseException {
+        minConnections = (int) DownloadOptions.longValue(cli, DownloadOptions.MIN_CONNECTIONS,
+                1, Integer.MAX_VALUE, minConnections);
+        maxConnections = (int) DownloadOptions.longValue(cli, DownloadOptions.MAX_CONNECTIONS,
+                1, Integer.MAX_VALUE, maxConnections);
+        if (maxConnections < minConnections) {
+            throw new ParseException("connections should satisfy min <= max");
+        }
+        speedLimit = DownloadOptions.longValue(cli, DownloadOptions.SPEED_LIMIT, 0, Long.MAX_VALUE, speedLimit);
+        speedTime = DownloadOptions.longValue(cli, DownloadOptions.SPEED_TIME, 1, Long.MAX_VALUE, speedTime);
+        maxRanges = (int) DownloadOptions.longValue(cli, DownloadOptions.MAX_RANGES, 1, Integer.MAX_VALUE, maxRanges);
+        syncInterval = DownloadOptions.longValue(cli, DownloadOptions.SYNC_INTERVAL, 1, Long.MAX_VALUE, syncInterval);
+        // rates are multiplied by the nanos since the last refill
+        limitRate = DownloadOptions.longValue(cli, DownloadOptions.LIMIT_RATE,
+                0, Long.MAX_VALUE / MAX_SHAPE_NANOS, limitRate);
+        taskLimitRate = DownloadOptions.longValue(cli, DownloadOptions.TASK_LIMIT_RATE,
+                0, Long.MAX_VALUE / MAX_SHAPE_NANOS, taskLimitRate);
+        maxActiveTasks = (int) DownloadOptions.longValue(cli, DownloadOptions.MAX_ACTIVE_TASKS,
+                1, Integer.MAX_VALUE, maxActiveTasks);
+        // slots and shares are divided from it, so it is positive whatever min connections is
+        maxTotalConnections = (int) DownloadOptions.longValue(cli, DownloadOptions.MAX_TOTAL_CONNECTIONS,
+                1, Integer.MAX_VALUE, maxTotalConnections);
+        if (maxTotalConnections < minConnections) {
+            throw new ParseException("max-total-connections should be >= min-connections " + minConnections);
+        }
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getSpeedLimit() {
+        return speedLimit;
+    }
+
+    public long getSpeedTime() {
+        return speedTime;
+    }
+
+    public int getMaxRanges() {
+        return maxRanges;
+    }
+
+    /**
+     * The most connections one task may use now, the total split equally between the launched tasks.
+     */
+    public synchronized int connectionShare() {
+        return Math.max(minConnections, maxTotalConnections / Math.max(1, launched.size()));
+    }
+
+    /**
+     * Every launched task can have at least the minimum of connections.
+     */
+    private int slots() {
+        return Math.min(maxActiveTasks, maxTotalConnections / minConnections);
+    }
+
+    /**
+     * Queue the task, it is launched once it is first in the queue and a slot is free.
+     *
+     * @param launch how the task starts, a new task probes its url while a stored one resumes
+     */
+    public void enqueue(@Nonnull SnapshottingTask task, @Nonnull Runnable launch) {
+        queue(task, launch);
+        dispatch();
+    }
+
+    private synchronized void queue(SnapshottingTask task, Runnable launch) {
+        queue.add(new QueuedTask(task, launch, queueSequence++));
+    }
+
+    /**
+     * Changes the priority of the stored task at the index {@link #printTasks()} lists it with.
+     */
+    public void setPriority(int index, int priority) {
+        List<SnapshottingTask> sortedTasks = currentTasks.values().stream()
+                .sorted(Comparator.comparing(JGetTask::createTime).reversed()).collect(Collectors.toList());
+        if (index <= 0 || index > sortedTasks.size()) {
+            throw new IllegalArgumentException("index should > 0 and <= " + sortedTasks.size());
+        }
+        setPriority(sortedTasks.get(index - 1), priority);
+    }
+
+    /**
+     * Changes the priority of a task, a queued one moves to its new place in the queue.
+     */
+    public void setPriority(@Nonnull SnapshottingTask task, int priority) {
+        synchronized (this) {
+            QueuedTask queued = null;
+            for (QueuedTask candidate : queue) {
+                if (candidate.task == task) {
+                    queued = candidate;
+                    break;
                 }
+            }
+            if (queued != null) {
+                queue.remove(queued);
+            }
+            task.setPriority(priority);
+            if (queued != null) {
+                queue.add(queued);
+            }
+        }
+        if (currentTasks.containsKey(task.id())) {
+            // stored with the next batch
+            dirtyTasks.add(task.id());
+        }
+    }
+
+    /**
+     * Download everything the manifest of the command line lists, the manifest is read while tasks run and only
+     * turned into tasks as slots open.
+     */
+    public void importManifest(CommandLine cli) throws ParseException {
+        // checked before the first entry, every task takes them from the command line
+        DownloadTask.blockSize(cli);
+        final int priority = DownloadTask.priority(cli);
+        synchronized (this) {
+            manifestCli = cli;
+            // an entry a stopped run left unfinished resumes instead of starting over
+            storedByUrl = new HashMap<>();
+            for (SnapshottingTask task : currentTasks.values()) {
+                if (task instanceof HttpTask) {
+                    storedByUrl.put(((HttpTask) task).getHttp().getUrl(), task);
+                }
+            }
+            try {
+                manifest = Manifest.open(cli.getOptionValue(DownloadOptions.INPUT_FILE), priority, this::manifestRead);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+    }
+
+    private void manifestRead() {
+        dispatch();
+        shutdownIfIdle();
+    }
+
+    /**
+     * Turns manifest entries into queued tasks until as many wait as there are slots, so only a few tasks exist at
+     * a time. The manifest hands out the entries it read ahead by priority.
+     */
+    private synchronized void takeFromManifest() {
+        while (manifest != null && queue.size() < slots()) {
+            final Manifest.Entry entry = manifest.poll();
+            if (entry == null) {
+                return;
+            }
+            final SnapshottingTask stored = storedByUrl.remove(entry.getUrl());
+            final SnapshottingTask task;
+            final Runnable launch;
+            if (stored != null) {
+                if (entry.getPriority() != null) {
+                    stored.setPriority(entry.getPriority());
+                }
+                task = stored;
+                launch = stored::ready;
+            } else {
+                final DownloadTask created;
+                final Path target;
+                try {
+                    created = new DownloadTask(Collections.singletonList(entry.getUrl()), manifestCli);
+                    if (entry.getName() != null) {
+                        created.setFileName(entry.getName());
+                    }
+                    if (entry.getChecksum() != null) {
+                        created.setChecksum(Checksum.parse(entry.getChecksum()));
+                    }
+                    target = Paths.get(created.targetFileDirectory(), created.targetFileName());
+                } catch (RuntimeException | ParseException e) {
+                    LOG.warn("skip {}, {}", entry.getUrl(), e.getMessage());
+                    continue;
+                }
+                if (entry.getPriority() != null) {
+                    created.setPriority(entry.getPriority());
+                }
+                if (Files.exists(target)) {
+                    if (created.getChecksum() == null) {
+                        LOG.debug("skip {}, {} exists", entry.getUrl(), created.targetFileName());
+                        manifestSkipped++;
+                    } else {
+                        manifestVerifying++;
+                        checksumExecutor.execute(() -> verifyExisting(created));
+                    }
+                    continue;
+                }
+                task = created;
+                launch = created::start;
+            }
+            queue.add(new QueuedTask(task, launch, queueSequence++));
+        }
+    }
+
+    /**
+     * An existing file is skipped if it matches the checksum of its entry, otherwise it is downloaded again and
+     * replaced.
+     */
+    private void verifyExisting(DownloadTask task) {
+        final boolean matches = task.verifyTarget();
+        synchronized (this) {
+            manifestVerifying--;
+            if (matches) {
+                manifestSkipped++;
+            } else {
+                queue.add(new QueuedTask(task, task::start, queueSequence++));
+            }
+        }
+        dispatch();
+        shutdownIfIdle();
+    }
+
+    /**
+     * Runs the verification of a downloaded file on the checksum thread.
+     */
+    void verifyChecksum(Runnable verification) {
+        checksumExecutor.execute(verification);
+    }
+
+    private void dispatch() {
+        final List<QueuedTask> launching = new ArrayList<>();
+        synchronized (this) {
+            takeFromManifest();
+            while (!queue.isEmpty() && launched.size() < slots()) {
+                final QueuedTask next = queue.poll();
+                launched.add(next.task.id());
+                launching.add(next);
+                takeFromManifest();
+            }
+        }
+        for (QueuedTask next : launching) {
+            LOG.info("launch task {}, priority {}", next.task.id(), next.task.getPriority());
+            next.launch.run();
+        }
+    }
+
+    public void addTask(@Nonnull JGetTask task) {
+        if (task instanceof SnapshottingTask) {
+            currentTasks.put(task.id(), (SnapshottingTask) task);
+            // the first snapshot is stored with the next batch
+            if (periodicalSnapshotting == null) {
+                periodicalSnapshotting = syncScheduler.scheduleAtFixedRate(this::persistTasks,
+                        syncInterval, syncInterval, TimeUnit.SECONDS);
+            }
+        }
         activeTasks.put(task.id(), task);
         if (periodicalShowProgress == null) {
             periodicalShowProgress = scheduler.scheduleAtFixedRate(this::showActiveTaskProgress, 1, 1, TimeUnit.SECONDS);
         }
+        if (periodicalTick == null) {
+            periodicalTick = scheduler.scheduleAtFixedRate(this::tickActiveTasks, 1, 1, TimeUnit.SECONDS);
+        }
+        if (periodicalShaping == null && (limitRate > 0 || taskLimitRate > 0)) {
+            lastShapeNanos = System.nanoTime();
+            periodicalShaping = scheduler.scheduleAtFixedRate(this::shapeBandwidth,
+                    0, SHAPE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
     }
 
     public void loadTasks() throws IOException {
@@ -62,12 +380,13 @@ public enum TaskManager {
                 .sorted(Comparator.comparing(JGetTask::createTime).reversed()).collect(Collectors.toList());
         for (int i = 0; i < sortedTasks.size(); i++) {
             SnapshottingTask task = sortedTasks.get(i);
-            String summary = String.format("[%d]-[%s][%s][%s%%][%s]",
+            String summary = String.format("[%d]-[%s][%s][%s%%][%s][priority %d]",
                     i + 1,
                     task.id(),
                     task.targetFileName(),
                     task.finishedPercent() == JGetTask.UNKNOWN_PERCENT ? "-" : String.valueOf(task.finishedPercent()),
-                    task.createTime()
+                    task.createTime(),
+                    task.getPriority()
             );
             System.out.println(summary);
         }
@@ -82,17 +401,21 @@ public enum TaskManager {
         }
         for (int i = 0; i < currentTasks.size(); i++) {
             if (i + 1 == index) {
-                sortedTasks.get(i).ready();
+                final SnapshottingTask task = sortedTasks.get(i);
+                enqueue(task, task::ready);
             }
         }
     }
 
     public void resumeTasks() {
-        Iterator<Map.Entry<String, SnapshottingTask>> iterator = currentTasks.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<String, SnapshottingTask> entry = iterator.next();
-            entry.getValue().ready();
+        // oldest first, so tasks of the same priority resume in the order they were added
+        final List<SnapshottingTask> sortedTasks = currentTasks.values().stream()
+                .sorted(Comparator.comparing(JGetTask::createTime)).collect(Collectors.toList());
+        // all are queued before any is launched, so the first slots go to the highest priority
+        for (SnapshottingTask task : sortedTasks) {
+            queue(task, task::ready);
         }
+        dispatch();
     }
 
     public void remove(int index) {
@@ -106,31 +429,137 @@ public enum TaskManager {
 
     public void remove(JGetTask task) {
         final String taskId = task.id();
-        try {
-            currentTasks.remove(taskId);
-            Snapshots.remove(taskId);
-            removeActive(taskId);
-            task.deleted();
-            System.out.println("remove task " + taskId);
-        } catch (IOException e) {
-            LOG.error("Error remove task {} ", taskId, e);
+        synchronized (this) {
+            queue.removeIf(queued -> queued.task == task);
         }
+        currentTasks.remove(taskId);
+        removedTasks.add(taskId);
+        removeActive(taskId);
+        task.deleted();
+        System.out.println("remove task " + taskId);
     }
 
+    /**
+     * The task finished or failed, its slot goes to the next queued task.
+     */
     public void removeActive(String id) {
         activeTasks.remove(id);
-        if (activeTasks.isEmpty()) {
-            scheduler.shutdown();
+        if (currentTasks.containsKey(id)) {
+            // failed, the progress since the last batch is kept
+            dirtyTasks.add(id);
         }
+        synchronized (this) {
+            launched.remove(id);
+        }
+        dispatch();
+        shutdownIfIdle();
     }
 
-    private void persistTasksPeriodically() {
-        for (Map.Entry<String, SnapshottingTask> taskEntry : currentTasks.entrySet()) {
+    private void shutdownIfIdle() {
+        final int skipped;
+        synchronized (this) {
+            if (stopped || !launched.isEmpty() || !queue.isEmpty() || !activeTasks.isEmpty() || manifestVerifying > 0
+                    || manifest != null && !manifest.isExhausted()) {
+                return;
+            }
+            stopped = true;
+            skipped = manifestSkipped;
+        }
+        persistTasks();
+        if (manifest != null) {
+            LOG.info("manifest done, {} entries skipped as already downloaded", skipped);
+        }
+        scheduler.shutdown();
+        syncScheduler.shutdown();
+        checksumExecutor.shutdown();
+        ConnectionPool.INSTANCE.close();
+        HostResolver.INSTANCE.close();
+        TransportRuntime.INSTANCE.shutdown();
+        DiskWriter.INSTANCE.shutdown();
+        LOG.info("memory budget {}, peak {}, {} stalls", unitedSize(MemoryBudget.INSTANCE.getBudget()),
+                unitedSize(MemoryBudget.INSTANCE.getPeak()), MemoryBudget.INSTANCE.getStalls());
+    }
+
+    /**
+     * Group commit: the snapshot only counts bytes that were written before it is taken, one sync of the file
+     * makes all of them durable, and only then is the snapshot stored. Snapshots of active and changed tasks and
+     * the removal of finished ones go to the store in one batch.
+     */
+    private void persistTasks() {
+        synchronized (persistLock) {
+            final Set<String> ids = new HashSet<>(activeTasks.keySet());
+            drain(dirtyTasks, ids);
+            final List<Snapshot> snapshots = new ArrayList<>();
+            for (String id : ids) {
+                final SnapshottingTask task = currentTasks.get(id);
+                if (task == null) {
+                    continue;
+                }
+                try {
+                    LOG.debug("Persist task {} Periodically", task);
+                    final Snapshot snapshot = task.snapshot();
+                    task.sync();
+                    snapshots.add(snapshot);
+                } catch (IOException e) {
+                    // the stored snapshot stays behind, which only costs downloading some bytes again
+                    LOG.error("Error persist task {}", id, e);
+                    dirtyTasks.add(id);
+                }
+            }
+            // taken after the snapshots, so a task finishing meanwhile is removed by this batch
+            final List<String> removed = new ArrayList<>();
+            drain(removedTasks, removed);
             try {
-                LOG.debug("Persist task {} Periodically", taskEntry.getValue());
-                Snapshots.persist(taskEntry.getValue().snapshot());
+                Snapshots.update(snapshots, removed);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                LOG.error("Error persist {} tasks", snapshots.size(), e);
+                removedTasks.addAll(removed);
+            }
+        }
+    }
+
+    private static void drain(Set<String> from, Collection<String> to) {
+        final Iterator<String> iterator = from.iterator();
+        while (iterator.hasNext()) {
+            to.add(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Refills the bucket of every active task for the time since the last refill. The global rate is shared max-min
+     * fair: tasks wanting less than an equal share get what they want, and what they leave is split equally between
+     * the others, none getting more than the rate of a task.
+     */
+    private void shapeBandwidth() {
+        final long now = System.nanoTime();
+        final long elapsed = Math.min(now - lastShapeNanos, MAX_SHAPE_NANOS);
+        lastShapeNanos = now;
+        final List<TokenBucket> buckets = new ArrayList<>();
+        for (JGetTask task : activeTasks.values()) {
+            if (task instanceof HttpTask) {
+                buckets.add(((HttpTask) task).getBandwidth());
+            }
+        }
+        final long taskShare = taskLimitRate > 0 ? taskLimitRate * elapsed / TimeUnit.SECONDS.toNanos(1) : Long.MAX_VALUE;
+        if (limitRate <= 0) {
+            for (TokenBucket bucket : buckets) {
+                bucket.refill(taskShare);
+            }
+            return;
+        }
+        for (TokenBucket bucket : buckets) {
+            bucket.measure();
+        }
+        TokenBucket.share(buckets, limitRate * elapsed / TimeUnit.SECONDS.toNanos(1), taskShare);
+    }
+
+    private void tickActiveTasks() {
+        for (JGetTask task : activeTasks.values()) {
+            try {
+                task.tick();
+            } catch (RuntimeException e) {
+                LOG.error("Error tick task {}", task.id(), e);
             }
         }
     }
@@ -147,6 +576,12 @@ public enum TaskManager {
                     unitedSize(task.getTotalBytes()),
                     task.createTime()));
         }
+        final MemoryBudget memory = MemoryBudget.INSTANCE;
+        progress.append(String.format("[memory][%s/%s][peak %s][%d stalls]%n",
+                unitedSize(memory.getUsed()),
+                unitedSize(memory.getBudget()),
+                unitedSize(memory.getPeak()),
+                memory.getStalls()));
         System.out.print(progress);
     }
 
@@ -173,9 +608,7 @@ public enum TaskManager {
 
     public void clearTasks() {
         try {
-            for (Map.Entry<String, SnapshottingTask> taskEntry : currentTasks.entrySet()) {
-                Snapshots.remove(taskEntry.getKey());
-            }
+            Snapshots.update(Collections.emptyList(), new ArrayList<>(currentTasks.keySet()));
             currentTasks.clear();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -9,11 +9,22 @@ import java.util.*;
 public class TaskSnapshot implements Snapshot {
     private final String taskId;
     private final String url;
+    private String effectiveUrl;
+    private long effectiveUrlExpireTime;
+    private String etag;
+    private String lastModified;
     private final long totalSize;
     private final String fileDirectory;
     private final String fileName;
     private LocalDateTime createTime;
+    private boolean singleStream;
+    private int priority;
+    private String targetName;
+    private String checksum;
+    private long blockSize;
     private final List<SubTaskSnapshot> subtasks = new ArrayList<>();
+    private final List<Range> pendingBlocks = new ArrayList<>();
+    private final List<MirrorSnapshot> mirrors = new ArrayList<>();
 
     public TaskSnapshot(String taskId,
                         String url,
@@ -48,6 +59,48 @@ public class TaskSnapshot implements Snapshot {
         return url;
     }
 
+    /**
+     * Where {@link #getUrl()} redirects to, null if it does not or the redirect has expired.
+     */
+    public String getEffectiveUrl() {
+        return effectiveUrl;
+    }
+
+    public void setEffectiveUrl(String effectiveUrl) {
+        this.effectiveUrl = effectiveUrl;
+    }
+
+    /**
+     * Epoch millis after which the effective url has to be resolved again.
+     */
+    public long getEffectiveUrlExpireTime() {
+        return effectiveUrlExpireTime;
+    }
+
+    public void setEffectiveUrlExpireTime(long effectiveUrlExpireTime) {
+        this.effectiveUrlExpireTime = effectiveUrlExpireTime;
+    }
+
+    /**
+     * The validators of the file when the download started, resumed ranges are requested with {@code If-Range}
+     * so a changed file is never mixed in.
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
     public long getTotalSize() {
         return totalSize;
     }
@@ -64,6 +117,77 @@ public class TaskSnapshot implements Snapshot {
         return subtasks;
     }
 
+    /**
+     * Blocks no worker has started yet, adjacent ones as one range, null in snapshots written before blocks were
+     * queued.
+     */
+    public List<Range> getPendingBlocks() {
+        return pendingBlocks;
+    }
+
+    /**
+     * All urls of the task with their state, the first one is {@link #getUrl()}.
+     * Null in snapshots written before mirrors were supported.
+     */
+    public List<MirrorSnapshot> getMirrors() {
+        return mirrors;
+    }
+
+    /**
+     * Whether the server did not serve ranges, so the file can only come through one connection.
+     */
+    public boolean isSingleStream() {
+        return singleStream;
+    }
+
+    public void setSingleStream(boolean singleStream) {
+        this.singleStream = singleStream;
+    }
+
+    /**
+     * Tasks of a higher priority start first, snapshots written before priorities have 0.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * The name the file is saved as when it was given up front, null when it comes from the url or the response.
+     */
+    public String getTargetName() {
+        return targetName;
+    }
+
+    public void setTargetName(String targetName) {
+        this.targetName = targetName;
+    }
+
+    /**
+     * What the file has to match, like {@code sha256:9f86...}, null if nothing is checked.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * Bytes of the blocks the task queues, snapshots written before it was stored have 0.
+     */
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(long blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public LocalDateTime getCreateTime() {
         return createTime;
     }
@@ -77,10 +201,15 @@ public class TaskSnapshot implements Snapshot {
         return "TaskSnapshot{" +
                 "taskId='" + taskId + '\'' +
                 ", url='" + url + '\'' +
+                ", effectiveUrl='" + effectiveUrl + '\'' +
+                ", etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
                 ", totalSize=" + totalSize +
                 ", fileDirectory='" + fileDirectory + '\'' +
                 ", fileName='" + fileName + '\'' +
                 ", subtasks=" + subtasks +
+                ", pendingBlocks=" + pendingBlocks +
+                ", mirrors=" + mirrors +
                 '}';
     }
 }
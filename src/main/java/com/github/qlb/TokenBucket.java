@@ -0,0 +1,100 @@
+package com.github.qlb;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bandwidth of one task. Received bytes take tokens without a lock and may take the bucket into debt, the channel
+ * that did stops reading until {@link TaskManager} refills the bucket, which pays off the debt first. A bucket that
+ * is not limited only counts.
+ */
+final class TokenBucket {
+    private static final int BURST_REFILLS = 4;
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+    private volatile boolean limited;
+    private volatile boolean throttled;
+    // only touched by the refilling thread
+    private long lastConsumed;
+    private boolean lastThrottled;
+
+    /**
+     * Max-min fair split of {@code total} tokens: the least demanding bucket gets what it wants up to an even
+     * share, what it leaves is split among the rest the same way. No bucket gets more than {@code taskShare}.
+     */
+    static void share(List<TokenBucket> buckets, long total, long taskShare) {
+        final List<TokenBucket> sorted = new ArrayList<>(buckets);
+        sorted.sort(Comparator.comparingLong(bucket -> bucket.demand(taskShare)));
+        long left = total;
+        int sharing = sorted.size();
+        for (TokenBucket bucket : sorted) {
+            final long granted = Math.min(bucket.demand(taskShare), left / sharing);
+            bucket.refill(granted);
+            left -= granted;
+            sharing--;
+        }
+    }
+
+    void consume(long bytes, Channel source) {
+        consumed.addAndGet(bytes);
+        if (!limited || tokens.addAndGet(-bytes) >= 0) {
+            return;
+        }
+        throttled = true;
+        // held again even if known, a release racing with the last refill may have let it read
+        paused.add(source);
+        ReadGate.hold(source, ReadGate.Hold.RATE);
+    }
+
+    /**
+     * Takes what was consumed since the last call, to estimate what the task wants of the next refill.
+     */
+    void measure() {
+        lastConsumed = consumed.getAndSet(0);
+        // a task still paying off debt wants all it can get, though it consumed nothing
+        lastThrottled = throttled || !paused.isEmpty();
+        throttled = false;
+    }
+
+    /**
+     * What the task would take of a share, all of it if it ran out of tokens, otherwise room to grow from what it
+     * consumed since the last refill.
+     */
+    long demand(long share) {
+        if (lastThrottled) {
+            return share;
+        }
+        return Math.min(share, 2 * lastConsumed + MemoryBudget.MAX_READ_SIZE);
+    }
+
+    void refill(long amount) {
+        limited = true;
+        // unused tokens only pile up to a few refills, an idle task can not burst for long
+        final long burst = Math.max(amount, 1) * BURST_REFILLS;
+        if (tokens.updateAndGet(t -> Math.min(t + amount, burst)) > 0) {
+            resumeAll();
+        }
+    }
+
+    /**
+     * Tokens left, negative while the bucket is in debt.
+     */
+    long available() {
+        return tokens.get();
+    }
+
+    private void resumeAll() {
+        for (Channel channel : paused) {
+            if (paused.remove(channel)) {
+                ReadGate.release(channel, ReadGate.Hold.RATE);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.qlb;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process wide event loops shared by every {@link Client}.
+ * The group is created lazily on first use, so commands that never open a connection start no threads.
+ */
+public enum TransportRuntime {
+    INSTANCE;
+    private static final Logger LOG = LoggerFactory.getLogger(TransportRuntime.class);
+    private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+    private int ioThreads = Runtime.getRuntime().availableProcessors();
+    private Mode mode = Mode.auto;
+    private boolean splice;
+    /**
+     * Zero leaves the buffer to the autotuning of the kernel, a fixed size turns it off.
+     */
+    private int receiveBuffer;
+    private Mode effectiveMode;
+    private EventLoopGroup group;
+    private Class<? extends Channel> channelClass;
+    private Class<? extends DatagramChannel> datagramChannelClass;
+
+    enum Mode {
+        auto,
+        nio,
+        epoll,
+        io_uring
+    }
+
+    public synchronized void configure(CommandLine cli) throws ParseException {
+        if (cli.hasOption(DownloadOptions.IO_THREADS) || cli.hasOption(DownloadOptions.TRANSPORT)) {
+            if (group != null) {
+                throw new IllegalStateException("Transport runtime is already started");
+            }
+        }
+        ioThreads = (int) DownloadOptions.longValue(cli, DownloadOptions.IO_THREADS, 1, Integer.MAX_VALUE, ioThreads);
+        if (cli.hasOption(DownloadOptions.TRANSPORT)) {
+            mode = DownloadOptions.enumValue(cli, DownloadOptions.TRANSPORT, Mode.class);
+        }
+        if (cli.hasOption(DownloadOptions.RECEIVE_BUFFER)) {
+            receiveBuffer = (int) DownloadOptions.longValue(cli, DownloadOptions.RECEIVE_BUFFER,
+                    1, Integer.MAX_VALUE / 1024, 0) * 1024;
+        }
+        splice = cli.hasOption(DownloadOptions.SPLICE);
+    }
+
+    /**
+     * Whether the body arriving on the channel can be spliced into a file, only epoll channels can.
+     */
+    public boolean canSplice(Channel channel) {
+        return splice && channel instanceof AbstractEpollStreamChannel;
+    }
+
+    public boolean isSpliceEnabled() {
+        return splice;
+    }
+
+    public synchronized EventLoopGroup group() {
+        if (group == null || group.isShuttingDown()) {
+            start();
+        }
+        return group;
+    }
+
+    public synchronized Class<? extends Channel> channelClass() {
+        group();
+        return channelClass;
+    }
+
+    /**
+     * The datagram channel matching the socket transport, used for dns queries.
+     */
+    public synchronized Class<? extends DatagramChannel> datagramChannelClass() {
+        group();
+        return datagramChannelClass;
+    }
+
+    /**
+     * A bootstrap bound to the shared group with the options of the selected transport.
+     */
+    public synchronized Bootstrap bootstrap() {
+        final Bootstrap bootstrap = new Bootstrap().group(group()).channel(channelClass)
+                .option(ChannelOption.ALLOCATOR, MemoryBudget.INSTANCE.allocator())
+                .option(ChannelOption.RCVBUF_ALLOCATOR, MemoryBudget.INSTANCE.receiveAllocator());
+        if (effectiveMode == Mode.epoll) {
+            // netty only splices from level triggered channels
+            bootstrap.option(EpollChannelOption.EPOLL_MODE, splice ? EpollMode.LEVEL_TRIGGERED : EpollMode.EDGE_TRIGGERED)
+                    .option(EpollChannelOption.TCP_QUICKACK, true);
+        }
+        if (receiveBuffer > 0) {
+            bootstrap.option(ChannelOption.SO_RCVBUF, receiveBuffer);
+        }
+        return bootstrap;
+    }
+
+    private void start() {
+        final ThreadFactory threadFactory = new DefaultThreadFactory("jget-io");
+        if ((mode == Mode.auto || mode == Mode.io_uring) && startIoUring(threadFactory)) {
+            effectiveMode = Mode.io_uring;
+        } else if ((mode == Mode.auto || mode == Mode.io_uring || mode == Mode.epoll) && Epoll.isAvailable()) {
+            group = new EpollEventLoopGroup(ioThreads, threadFactory);
+            channelClass = EpollSocketChannel.class;
+            datagramChannelClass = EpollDatagramChannel.class;
+            effectiveMode = Mode.epoll;
+        } else {
+            if (mode != Mode.auto && mode != Mode.nio) {
+                LOG.warn("transport {} is not available, fall back to nio", mode, Epoll.unavailabilityCause());
+            }
+            group = new NioEventLoopGroup(ioThreads, threadFactory);
+            channelClass = NioSocketChannel.class;
+            datagramChannelClass = NioDatagramChannel.class;
+            effectiveMode = Mode.nio;
+        }
+        LOG.info("start {} transport runtime with {} io threads", effectiveMode, ioThreads);
+    }
+
+    /**
+     * io_uring lives in the optional netty incubator artifact, so it is only looked up reflectively.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean startIoUring(ThreadFactory threadFactory) {
+        try {
+            final Class<?> ioUring = Class.forName(IO_URING_PACKAGE + "IOUring");
+            if (!(Boolean) ioUring.getMethod("isAvailable").invoke(null)) {
+                return false;
+            }
+            group = (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup")
+                    .getConstructor(int.class, ThreadFactory.class)
+                    .newInstance(ioThreads, threadFactory);
+            channelClass = (Class<? extends Channel>) Class.forName(IO_URING_PACKAGE + "IOUringSocketChannel");
+            datagramChannelClass = (Class<? extends DatagramChannel>) Class.forName(IO_URING_PACKAGE + "IOUringDatagramChannel");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (ReflectiveOperationException | LinkageError e) {
+            LOG.warn("io_uring transport can not be loaded", e);
+            return false;
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (group != null) {
+            group.shutdownGracefully();
+            group = null;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares the two ways worker content has gone into the temp file: every chunk written under a lock on one
+ * shared channel, as before {@link BlockWriter}, and chunks coalesced per worker by {@link BlockWriter} on the
+ * disk threads. Every thread plays a worker writing its own region in chunks the size of a socket read.
+ * <p>
+ * Run with the test classpath: {@code BlockWriterBenchmark [MiB] [threads...]}, default 1024 MiB with 1, 8 and 16
+ * threads. The file goes to the temp directory, which is usually the page cache rather than the disk.
+ */
+public class BlockWriterBenchmark {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws Exception {
+        final long total = (args.length > 0 ? Long.parseLong(args[0]) : 1024) << 20;
+        final List<Integer> threadCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            threadCounts.add(Integer.parseInt(args[i]));
+        }
+        if (threadCounts.isEmpty()) {
+            threadCounts.add(1);
+            threadCounts.add(8);
+            threadCounts.add(16);
+        }
+        final Path file = Files.createTempFile("jget-bench", ".bin");
+        try {
+            for (int threads : threadCounts) {
+                for (int round = 0; round < ROUNDS; round++) {
+                    report("locked", threads, total, locked(file, threads, total));
+                    report("coalesced", threads, total, coalesced(file, threads, total));
+                }
+            }
+        } finally {
+            DiskWriter.INSTANCE.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void report(String mode, int threads, long total, long nanos) {
+        System.out.printf("%-9s threads %2d  %6.0f MB/s%n", mode, threads, total / 1e6 / (nanos / 1e9));
+    }
+
+    private static ByteBuf chunk() {
+        final ByteBuf chunk = PooledByteBufAllocator.DEFAULT.directBuffer(CHUNK_SIZE);
+        chunk.writeZero(CHUNK_SIZE);
+        return chunk;
+    }
+
+    private static long locked(Path file, int threads, long total) throws Exception {
+        Files.write(file, new byte[0]);
+        try (FileChannel shared = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final long start = System.nanoTime();
+            run(threads, (base, length) -> {
+                final ByteBuf chunk = chunk();
+                try {
+                    for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+                        final ByteBuffer buffer = chunk.nioBuffer(0, CHUNK_SIZE);
+                        synchronized (shared) {
+                            shared.position(base + offset);
+                            while (buffer.hasRemaining()) {
+                                shared.write(buffer);
+                            }
+                        }
+                    }
+                } finally {
+                    chunk.release();
+                }
+            }, total);
+            return System.nanoTime() - start;
+        }
+    }
+
+    private static long coalesced(Path file, int threads, long total) throws Exception {
+        Files.write(file, new byte[0]);
+        final long start = System.nanoTime();
+        run(threads, (base, length) -> {
+            final Written written = new Written();
+            final BlockWriter writer = new BlockWriter(file, written);
+            final ByteBuf chunk = chunk();
+            try {
+                for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+                    // no channel to pause, the chunk is shared so the queue holds no memory
+                    writer.write(chunk.slice(0, CHUNK_SIZE), base + offset, null);
+                }
+                writer.close();
+                written.await(length);
+            } finally {
+                chunk.release();
+            }
+        }, total);
+        return System.nanoTime() - start;
+    }
+
+    private interface Region {
+        void write(long base, long length) throws Exception;
+    }
+
+    private static void run(int threads, Region region, long total) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final long length = total / threads / CHUNK_SIZE * CHUNK_SIZE;
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                final long base = i * length;
+                futures.add(executor.submit(() -> {
+                    region.write(base, length);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static final class Written implements BlockWriter.Listener {
+        private long bytes;
+        private IOException error;
+
+        @Override
+        public synchronized void written(long bytes) {
+            this.bytes += bytes;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void writeFailed(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        synchronized void await(long length) throws Exception {
+            while (bytes < length && error == null) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
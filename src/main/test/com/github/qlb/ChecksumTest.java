@@ -0,0 +1,49 @@
+package com.github.qlb;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChecksumTest {
+    private static final String MD5_ABC = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String SHA1_ABC = "a9993e364706816aba3e25717850c26c9cd0d89d";
+    private static final String SHA256_ABC = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    void testParseWithAlgorithm() {
+        assertEquals("sha256:" + SHA256_ABC, Checksum.parse("sha256:" + SHA256_ABC).toString());
+        assertEquals("sha256:" + SHA256_ABC, Checksum.parse("SHA-256:" + SHA256_ABC.toUpperCase()).toString());
+        assertEquals("md5:" + MD5_ABC, Checksum.parse(" md5:" + MD5_ABC + "\n").toString());
+    }
+
+    @Test
+    void testParseBareHexByLength() {
+        assertEquals("md5:" + MD5_ABC, Checksum.parse(MD5_ABC).toString());
+        assertEquals("sha1:" + SHA1_ABC, Checksum.parse(SHA1_ABC).toString());
+        assertEquals("sha256:" + SHA256_ABC, Checksum.parse(SHA256_ABC).toString());
+    }
+
+    @Test
+    void testParseInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> Checksum.parse("crc32:352441c2"));
+        assertThrows(IllegalArgumentException.class, () -> Checksum.parse("abc"));
+        assertThrows(IllegalArgumentException.class, () -> Checksum.parse(""));
+    }
+
+    @Test
+    void testMatches() throws Exception {
+        final Path file = Files.createTempFile("jget-checksum", ".bin");
+        try {
+            Files.write(file, "abc".getBytes(StandardCharsets.US_ASCII));
+            assertTrue(Checksum.parse(SHA256_ABC).matches(file));
+            assertTrue(Checksum.parse("md5:" + MD5_ABC.toUpperCase()).matches(file));
+            assertFalse(Checksum.parse(SHA1_ABC.replace('a', 'b')).matches(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
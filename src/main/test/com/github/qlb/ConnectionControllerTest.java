@@ -0,0 +1,105 @@
+package com.github.qlb;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionControllerTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final int NO_LIMIT = Integer.MAX_VALUE;
+
+    private long bytes;
+    private long nanos;
+
+    /**
+     * One tick after a second at the rate.
+     */
+    private int tick(ConnectionController controller, long rate, int limit) {
+        bytes += rate;
+        nanos += SECOND;
+        return controller.tick(bytes, nanos, limit);
+    }
+
+    private int tick(ConnectionController controller, long rate) {
+        return tick(controller, rate, NO_LIMIT);
+    }
+
+    @Test
+    void testFirstTickOnlyMeasures() {
+        final ConnectionController controller = new ConnectionController(2, 32);
+        assertEquals(2, controller.tick(0, 0, NO_LIMIT));
+        assertEquals(2, controller.target());
+    }
+
+    @Test
+    void testSlowStartDoublesWhileThroughputRises() {
+        final ConnectionController controller = new ConnectionController(2, 32);
+        controller.tick(0, 0, NO_LIMIT);
+        assertEquals(4, tick(controller, 100));
+        assertEquals(8, tick(controller, 200));
+        assertEquals(16, tick(controller, 400));
+        assertEquals(32, tick(controller, 800));
+        // never beyond the maximum
+        assertEquals(32, tick(controller, 1600));
+    }
+
+    @Test
+    void testProbeWithoutGainIsTakenBackAndHeld() {
+        final ConnectionController controller = new ConnectionController(2, 32);
+        controller.tick(0, 0, NO_LIMIT);
+        assertEquals(4, tick(controller, 100));
+        assertEquals(8, tick(controller, 200));
+        // 8 connections are not faster than 4
+        assertEquals(4, tick(controller, 200));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(4, tick(controller, 1000));
+        }
+        // after slow start ended connections are added one at a time
+        assertEquals(5, tick(controller, 1000));
+        assertEquals(6, tick(controller, 2000));
+    }
+
+    @Test
+    void testCongestionHalvesAndHolds() {
+        final ConnectionController controller = new ConnectionController(2, 32);
+        controller.tick(0, 0, NO_LIMIT);
+        tick(controller, 100);
+        tick(controller, 200);
+        assertEquals(16, tick(controller, 400));
+        controller.congested();
+        controller.congested();
+        // many signals in one tick halve once
+        assertEquals(8, tick(controller, 400));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(8, tick(controller, 10_000));
+        }
+        assertEquals(9, tick(controller, 10_000));
+    }
+
+    @Test
+    void testCongestionNeverGoesBelowMinimum() {
+        final ConnectionController controller = new ConnectionController(3, 32);
+        controller.tick(0, 0, NO_LIMIT);
+        controller.congested();
+        assertEquals(3, tick(controller, 100));
+    }
+
+    @Test
+    void testLimitCapsTarget() {
+        final ConnectionController controller = new ConnectionController(2, 32);
+        controller.tick(0, 0, NO_LIMIT);
+        assertEquals(4, tick(controller, 100));
+        assertEquals(8, tick(controller, 200));
+        // another task took connections, the target drops to the share at once
+        assertEquals(5, tick(controller, 400, 5));
+        assertEquals(5, tick(controller, 800, 5));
+        // a share below the minimum still leaves the minimum
+        assertEquals(2, tick(controller, 800, 1));
+    }
+
+    @Test
+    void testInvalidBounds() {
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionController(0, 4));
+        assertThrows(IllegalArgumentException.class, () -> new ConnectionController(4, 3));
+    }
+}
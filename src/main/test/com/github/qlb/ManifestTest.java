@@ -0,0 +1,84 @@
+package com.github.qlb;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManifestTest {
+    private final Gson gson = new Gson();
+
+    @Test
+    void testParseUrl() {
+        final Manifest.Entry entry = Manifest.parse(gson, "http://example.com/a.bin");
+        assertEquals("http://example.com/a.bin", entry.getUrl());
+        assertNull(entry.getName());
+        assertNull(entry.getChecksum());
+        assertNull(entry.getPriority());
+    }
+
+    @Test
+    void testParseJson() {
+        final Manifest.Entry entry = Manifest.parse(gson, "{\"url\": \"http://example.com/a.bin\", \"name\": \"b.bin\", "
+                + "\"checksum\": \"md5:900150983cd24fb0d6963f7d28e17f72\", \"priority\": 3}");
+        assertEquals("http://example.com/a.bin", entry.getUrl());
+        assertEquals("b.bin", entry.getName());
+        assertEquals("md5:900150983cd24fb0d6963f7d28e17f72", entry.getChecksum());
+        assertEquals(3, entry.getPriority());
+    }
+
+    @Test
+    void testParseSkipsBlankAndComment() {
+        assertNull(Manifest.parse(gson, ""));
+        assertNull(Manifest.parse(gson, "# http://example.com/a.bin"));
+    }
+
+    @Test
+    void testParseInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse(gson, "{\"name\": \"b.bin\"}"));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse(gson, "{\"url\": \"\"}"));
+        // rejected when read, not after the download
+        assertThrows(IllegalArgumentException.class,
+                () -> Manifest.parse(gson, "{\"url\": \"http://example.com/a\", \"checksum\": \"abc\"}"));
+        assertThrows(JsonParseException.class, () -> Manifest.parse(gson, "{\"url\": "));
+    }
+
+    @Test
+    void testHighestPriorityReadAheadFirst() throws Exception {
+        final Path file = Files.createTempFile("jget-manifest", ".txt");
+        try {
+            Files.write(file, Arrays.asList(
+                    "http://example.com/1",
+                    "{\"url\": \"http://example.com/2\", \"priority\": -1}",
+                    "{not json",
+                    "{\"url\": \"http://example.com/3\", \"priority\": 5}",
+                    "http://example.com/4",
+                    "{\"url\": \"http://example.com/5\", \"priority\": 2}"), StandardCharsets.UTF_8);
+            // once per entry and once when the list ended
+            final CountDownLatch read = new CountDownLatch(6);
+            final Manifest manifest = Manifest.open(file.toString(), 2, read::countDown);
+            assertTrue(read.await(10, TimeUnit.SECONDS));
+            final List<String> urls = new ArrayList<>();
+            Manifest.Entry entry;
+            while ((entry = manifest.poll()) != null) {
+                urls.add(entry.getUrl());
+            }
+            assertTrue(manifest.isExhausted());
+            // entries without a priority have the default, ties keep the order of the list
+            assertEquals(Arrays.asList("http://example.com/3", "http://example.com/1", "http://example.com/4",
+                    "http://example.com/5", "http://example.com/2"), urls);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MultipartByteRangesTest {
+    private static final String BOUNDARY = "THIS_STRING_SEPARATES";
+
+    /**
+     * Collects every part as "start-end:content".
+     */
+    private static final class Parts implements MultipartByteRanges.Listener {
+        private final List<String> parts = new ArrayList<>();
+        private StringBuilder current;
+
+        @Override
+        public void partStarted(long start, long end) {
+            current = new StringBuilder();
+            parts.add(null);
+            current.append(start).append('-').append(end).append(':');
+        }
+
+        @Override
+        public void partContent(ByteBuf content) {
+            current.append(content.toString(StandardCharsets.ISO_8859_1));
+            parts.set(parts.size() - 1, current.toString());
+        }
+    }
+
+    private static String body(String lineEnd) {
+        return "preamble" + lineEnd
+                + "--" + BOUNDARY + lineEnd
+                + "Content-Type: application/octet-stream" + lineEnd
+                + "Content-Range: bytes 0-4/20" + lineEnd
+                + lineEnd
+                + "hello" + lineEnd
+                + "--" + BOUNDARY + lineEnd
+                + "content-range: bytes 10-14/*" + lineEnd
+                + lineEnd
+                + "w\r\nrd" + lineEnd
+                + "--" + BOUNDARY + "--" + lineEnd;
+    }
+
+    private static void feed(MultipartByteRanges parser, String body, int chunkSize) throws Exception {
+        final byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            final ByteBuf chunk = Unpooled.wrappedBuffer(bytes, i, Math.min(chunkSize, bytes.length - i));
+            parser.feed(chunk);
+            assertFalse(chunk.isReadable());
+        }
+    }
+
+    @Test
+    void testCrlf() throws Exception {
+        final Parts parts = new Parts();
+        feed(new MultipartByteRanges(BOUNDARY, parts), body("\r\n"), Integer.MAX_VALUE);
+        assertEquals(2, parts.parts.size());
+        assertEquals("0-4:hello", parts.parts.get(0));
+        // the body is taken by length, line breaks inside it are content
+        assertEquals("10-14:w\r\nrd", parts.parts.get(1));
+    }
+
+    @Test
+    void testLf() throws Exception {
+        final Parts parts = new Parts();
+        feed(new MultipartByteRanges(BOUNDARY, parts), body("\n"), Integer.MAX_VALUE);
+        assertEquals(2, parts.parts.size());
+        assertEquals("0-4:hello", parts.parts.get(0));
+        assertEquals("10-14:w\r\nrd", parts.parts.get(1));
+    }
+
+    @Test
+    void testPartsSplitAcrossChunks() throws Exception {
+        for (int chunkSize = 1; chunkSize < 16; chunkSize++) {
+            final Parts parts = new Parts();
+            feed(new MultipartByteRanges(BOUNDARY, parts), body("\r\n"), chunkSize);
+            assertEquals(2, parts.parts.size(), "chunk size " + chunkSize);
+            assertEquals("0-4:hello", parts.parts.get(0), "chunk size " + chunkSize);
+            assertEquals("10-14:w\r\nrd", parts.parts.get(1), "chunk size " + chunkSize);
+        }
+    }
+
+    @Test
+    void testNothingAfterClosingDelimiter() throws Exception {
+        final Parts parts = new Parts();
+        feed(new MultipartByteRanges(BOUNDARY, parts), body("\r\n") + "--" + BOUNDARY + "\r\n"
+                + "Content-Range: bytes 15-16/20\r\n\r\nxx\r\n", Integer.MAX_VALUE);
+        assertEquals(2, parts.parts.size());
+    }
+
+    @Test
+    void testPartWithoutContentRange() {
+        final String body = "--" + BOUNDARY + "\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "\r\n"
+                + "hello\r\n";
+        assertThrows(IllegalStateException.class,
+                () -> feed(new MultipartByteRanges(BOUNDARY, new Parts()), body, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void testBoundary() {
+        assertEquals(BOUNDARY, MultipartByteRanges.boundary("multipart/byteranges; boundary=" + BOUNDARY));
+        assertEquals("a b", MultipartByteRanges.boundary("Multipart/ByteRanges; charset=x; boundary=\"a b\""));
+        assertNull(MultipartByteRanges.boundary("multipart/byteranges"));
+        assertNull(MultipartByteRanges.boundary("application/octet-stream"));
+        assertNull(MultipartByteRanges.boundary(null));
+    }
+
+    @Test
+    void testQuotedBoundaryBody() throws Exception {
+        final Parts parts = new Parts();
+        final String boundary = MultipartByteRanges.boundary("multipart/byteranges; boundary=\"" + BOUNDARY + "\"");
+        feed(new MultipartByteRanges(boundary, parts), body("\r\n"), 7);
+        assertEquals(2, parts.parts.size());
+        assertEquals("0-4:hello", parts.parts.get(0));
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.qlb;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The throughput cost of making progress durable. Content goes through a {@link BlockWriter} as a worker writes
+ * it, and the file is synced never, once per interval on its own thread the way {@link TaskManager} group commits,
+ * or after every write the disk threads make.
+ * <p>
+ * Run with the test classpath: {@code SyncBenchmark [MiB] [interval seconds] [directory]}, default 1024 MiB, the
+ * default sync interval of 2 seconds and the temp directory. Only a directory on a real disk shows the cost of
+ * a sync.
+ */
+public class SyncBenchmark {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int ROUNDS = 3;
+
+    private enum Mode {
+        none,
+        interval,
+        every_write
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long total = (args.length > 0 ? Long.parseLong(args[0]) : 1024) << 20;
+        final long intervalSeconds = args.length > 1 ? Long.parseLong(args[1]) : 2;
+        final Path file = args.length > 2 ? Files.createTempFile(Paths.get(args[2]), "jget-bench", ".bin")
+                : Files.createTempFile("jget-bench", ".bin");
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                for (Mode mode : Mode.values()) {
+                    run(file, mode, total, intervalSeconds);
+                }
+            }
+        } finally {
+            DiskWriter.INSTANCE.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void sync(Path file) throws IOException {
+        // like the task, through a channel of its own, which flushes what every writer of the file wrote
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+
+    private static void run(Path file, Mode mode, long total, long intervalSeconds) throws Exception {
+        Files.write(file, new byte[0]);
+        final AtomicLong syncs = new AtomicLong();
+        final Listener listener = new Listener(mode == Mode.every_write ? file : null, syncs);
+        final BlockWriter writer = new BlockWriter(file, listener);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        final ByteBuf chunk = PooledByteBufAllocator.DEFAULT.directBuffer(CHUNK_SIZE);
+        chunk.writeZero(CHUNK_SIZE);
+        final long start = System.nanoTime();
+        try {
+            if (mode == Mode.interval) {
+                scheduler.scheduleAtFixedRate(() -> {
+                    try {
+                        sync(file);
+                        syncs.incrementAndGet();
+                    } catch (IOException e) {
+                        listener.writeFailed(e);
+                    }
+                }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+            }
+            for (long offset = 0; offset < total; offset += CHUNK_SIZE) {
+                writer.write(chunk.slice(0, CHUNK_SIZE), offset, null);
+            }
+            writer.close();
+            listener.await(total);
+        } finally {
+            scheduler.shutdown();
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            chunk.release();
+        }
+        // the last progress is made durable in every mode
+        sync(file);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%-11s %6.0f MiB/s  %d syncs%n", mode, (total >> 20) / seconds, syncs.get() + 1);
+    }
+
+    private static final class Listener implements BlockWriter.Listener {
+        private final Path syncEveryWrite;
+        private final AtomicLong syncs;
+        private long bytes;
+        private IOException error;
+
+        private Listener(Path syncEveryWrite, AtomicLong syncs) {
+            this.syncEveryWrite = syncEveryWrite;
+            this.syncs = syncs;
+        }
+
+        @Override
+        public void written(long bytes) {
+            if (syncEveryWrite != null) {
+                try {
+                    // on the disk thread, before the next write
+                    sync(syncEveryWrite);
+                    syncs.incrementAndGet();
+                } catch (IOException e) {
+                    writeFailed(e);
+                }
+            }
+            synchronized (this) {
+                this.bytes += bytes;
+                notifyAll();
+            }
+        }
+
+        @Override
+        public synchronized void writeFailed(IOException e) {
+            error = e;
+            notifyAll();
+        }
+
+        synchronized void await(long length) throws Exception {
+            while (bytes < length && error == null) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -13,7 +13,8 @@ class TaskSnapshotTest {
     @Test
     void testPersistLoad() throws IOException {
         LocalDateTime now = LocalDateTime.now();
-        Snapshot snapshot = new TaskSnapshot("a", "b", 100L, "world", "hello", now);
+        TaskSnapshot snapshot = new TaskSnapshot("a", "b", 100L, "world", "hello", now);
+        snapshot.setBlockSize(256 * 1024);
         Snapshots.persist(TEST_DB, snapshot);
         TaskSnapshot load = (TaskSnapshot) Snapshots.load(TEST_DB, "a");
         assertNotNull(load);
@@ -23,6 +24,7 @@ class TaskSnapshotTest {
         assertEquals("world", load.getFileDirectory());
         assertEquals("hello", load.getFileName());
         assertEquals(now, load.getCreateTime());
+        assertEquals(256 * 1024, load.getBlockSize());
         assertNotNull(load.getSubtasks());
         assertTrue(load.getSubtasks().isEmpty());
     }
@@ -0,0 +1,138 @@
+package com.github.qlb;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+    private static final long NO_TASK_LIMIT = Long.MAX_VALUE;
+
+    /**
+     * A bucket that consumed {@code bytes} since the last refill, without running out.
+     */
+    private static TokenBucket consumed(long bytes) {
+        final TokenBucket bucket = new TokenBucket();
+        bucket.refill(bytes);
+        bucket.consume(bytes, new EmbeddedChannel());
+        bucket.measure();
+        return bucket;
+    }
+
+    /**
+     * A bucket that ran into debt since the last refill, it wants all it can get.
+     */
+    private static TokenBucket throttled() {
+        final TokenBucket bucket = new TokenBucket();
+        bucket.refill(1);
+        bucket.consume(2, new EmbeddedChannel());
+        bucket.measure();
+        return bucket;
+    }
+
+    @Test
+    void testUnlimitedOnlyCounts() {
+        final TokenBucket bucket = new TokenBucket();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        bucket.consume(1 << 30, channel);
+        assertTrue(channel.config().isAutoRead());
+        assertFalse(ReadGate.sampleHeld(channel));
+    }
+
+    @Test
+    void testDebtHoldsUntilPaidOff() {
+        final TokenBucket bucket = new TokenBucket();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        bucket.refill(100);
+        bucket.consume(100, channel);
+        assertTrue(channel.config().isAutoRead());
+        bucket.consume(150, channel);
+        assertFalse(channel.config().isAutoRead());
+        assertEquals(-150, bucket.available());
+        // pays off part of the debt, still held
+        bucket.refill(100);
+        assertFalse(channel.config().isAutoRead());
+        bucket.refill(100);
+        assertEquals(50, bucket.available());
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    void testRateReleaseKeepsMemoryHold() {
+        final TokenBucket bucket = new TokenBucket();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        bucket.refill(10);
+        ReadGate.hold(channel, ReadGate.Hold.MEMORY);
+        bucket.consume(20, channel);
+        bucket.refill(100);
+        assertFalse(channel.config().isAutoRead());
+        ReadGate.release(channel, ReadGate.Hold.MEMORY);
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    void testHeldIsSampledOnce() {
+        final TokenBucket bucket = new TokenBucket();
+        final EmbeddedChannel channel = new EmbeddedChannel();
+        assertFalse(ReadGate.sampleHeld(channel));
+        bucket.refill(10);
+        bucket.consume(20, channel);
+        bucket.refill(100);
+        // released again, but it was held since the last sample
+        assertTrue(channel.config().isAutoRead());
+        assertTrue(ReadGate.sampleHeld(channel));
+        assertFalse(ReadGate.sampleHeld(channel));
+    }
+
+    @Test
+    void testIdleBucketBurstIsCapped() {
+        final TokenBucket bucket = new TokenBucket();
+        for (int i = 0; i < 10; i++) {
+            bucket.refill(100);
+        }
+        assertEquals(400, bucket.available());
+    }
+
+    @Test
+    void testDemand() {
+        // room to grow from what was consumed
+        assertEquals(2 * 1000 + MemoryBudget.MAX_READ_SIZE, consumed(1000).demand(NO_TASK_LIMIT));
+        assertEquals(500, consumed(1000).demand(500));
+        assertEquals(1 << 20, throttled().demand(1 << 20));
+    }
+
+    @Test
+    void testShareEvenlyAmongThrottled() {
+        final TokenBucket[] buckets = {throttled(), throttled(), throttled(), throttled()};
+        TokenBucket.share(Arrays.asList(buckets), 1000, NO_TASK_LIMIT);
+        for (TokenBucket bucket : buckets) {
+            // a throttled bucket was 1 in debt
+            assertEquals(250 - 1, bucket.available());
+        }
+    }
+
+    @Test
+    void testShareGivesWhatOneLeavesToTheRest() {
+        final TokenBucket modest = consumed(0);
+        final TokenBucket greedy = throttled();
+        final TokenBucket other = throttled();
+        final long total = 3L * 1024 * 1024;
+        TokenBucket.share(Arrays.asList(greedy, modest, other), total, NO_TASK_LIMIT);
+        // the modest one only wants one read, the others split the rest
+        assertEquals(MemoryBudget.MAX_READ_SIZE, modest.available());
+        final long rest = (total - MemoryBudget.MAX_READ_SIZE) / 2;
+        assertEquals(rest - 1, greedy.available());
+        assertEquals(rest - 1, other.available());
+    }
+
+    @Test
+    void testShareCappedByTaskLimit() {
+        final TokenBucket first = throttled();
+        final TokenBucket second = throttled();
+        TokenBucket.share(Arrays.asList(first, second), 10_000, 1000);
+        assertEquals(1000 - 1, first.available());
+        assertEquals(1000 - 1, second.available());
+    }
+}